@@ -0,0 +1,58 @@
+package ratelimiter;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+// Shapes of customer id traffic the benchmarks are run against
+public enum CustomerIdDistribution {
+    // Every customer is equally likely, so most requests hit a cold entry
+    UNIFORM {
+        @Override
+        int[] generate(int customers, int count, long seed) {
+            SplittableRandom random = new SplittableRandom(seed);
+            int[] customerIds = new int[count];
+            for (int i = 0; i < count; i++)
+                customerIds[i] = FIRST_CUSTOMER_ID + random.nextInt(customers);
+            return customerIds;
+        }
+    },
+    // A few customers send most of the traffic, which is what a real gateway sees
+    ZIPFIAN {
+        @Override
+        int[] generate(int customers, int count, long seed) {
+            /*
+                Builds the cumulative distribution once and samples it with a binary search.
+                This only runs during setup, so the measured loop just reads the precomputed ids.
+             */
+            double[] cumulative = new double[customers];
+            double sum = 0;
+            for (int rank = 0; rank < customers; rank++) {
+                sum += 1.0 / Math.pow(rank + 1, ZIPF_EXPONENT);
+                cumulative[rank] = sum;
+            }
+
+            SplittableRandom random = new SplittableRandom(seed);
+            int[] customerIds = new int[count];
+            for (int i = 0; i < count; i++) {
+                int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                customerIds[i] = FIRST_CUSTOMER_ID + (rank >= 0 ? rank : Math.min(-rank - 1, customers - 1));
+            }
+            return customerIds;
+        }
+    },
+    // Every thread hammers the same customer, the worst case for contention on a single entry
+    HOT_KEY {
+        @Override
+        int[] generate(int customers, int count, long seed) {
+            int[] customerIds = new int[count];
+            Arrays.fill(customerIds, FIRST_CUSTOMER_ID);
+            return customerIds;
+        }
+    };
+
+    // Start outside the Integer cache so boxing costs show up the same way they do in production
+    static final int FIRST_CUSTOMER_ID = 1_000;
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    abstract int[] generate(int customers, int count, long seed);
+}
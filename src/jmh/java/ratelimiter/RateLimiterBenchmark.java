@@ -0,0 +1,170 @@
+package ratelimiter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+    Throughput and latency of shouldAllowRequest() for every RateLimiter implementation.
+    Throughput mode reports ops/s, SampleTime mode reports the latency percentiles (p99 included),
+    and running with the gc profiler (as main() does) adds the allocation rate per operation.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RateLimiterBenchmark {
+    // Number of precomputed customer ids each thread cycles through, a power of two so the index can be masked
+    private static final int IDS_PER_THREAD = 1 << 16;
+    // Requests per shouldAllowRequests() call, the size of the micro-batches an ingestion pipeline hands over
+    private static final int BATCH_SIZE = 1024;
+
+    @Param
+    public Algorithm algorithm;
+
+    @Param
+    public CustomerIdDistribution distribution;
+
+    @Param({"100000"})
+    public int customers;
+
+    private RateLimiter rateLimiter;
+    private long startNanos;
+
+    @Setup(Level.Trial)
+    public void createRateLimiter() {
+        rateLimiter = algorithm.create();
+        startNanos = System.nanoTime();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int[] customerIds;
+        int next;
+        final int[] batchCustomerIds = new int[BATCH_SIZE];
+        final int[] batchTimestamps = new int[BATCH_SIZE];
+        final boolean[] batchResults = new boolean[BATCH_SIZE];
+
+        @Setup(Level.Trial)
+        public void generateCustomerIds(RateLimiterBenchmark benchmark) {
+            // A different seed per thread, otherwise all threads walk the same ids in lock step
+            customerIds = benchmark.distribution.generate(benchmark.customers, IDS_PER_THREAD, System.identityHashCode(this));
+        }
+    }
+
+    @Benchmark
+    public boolean shouldAllowRequest(ThreadState threadState) {
+        int customerId = threadState.customerIds[threadState.next++ & (IDS_PER_THREAD - 1)];
+        // Milliseconds since the trial started, so windows and refills actually roll over while measuring
+        int timestamp = (int) ((System.nanoTime() - startNanos) / 1_000_000);
+        return rateLimiter.shouldAllowRequest(customerId, timestamp);
+    }
+
+    // Same traffic as shouldAllowRequest() handed over in batches, scores are per request so the two can be compared directly
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public boolean[] shouldAllowRequests(ThreadState threadState) {
+        int timestamp = (int) ((System.nanoTime() - startNanos) / 1_000_000);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            threadState.batchCustomerIds[i] = threadState.customerIds[threadState.next++ & (IDS_PER_THREAD - 1)];
+            threadState.batchTimestamps[i] = timestamp;
+        }
+        rateLimiter.shouldAllowRequests(threadState.batchCustomerIds, threadState.batchTimestamps, threadState.batchResults);
+        return threadState.batchResults;
+    }
+
+    // Limits are chosen so that each algorithm allows about 1000 requests per customer per second of the ms timestamps
+    public enum Algorithm {
+        TOKEN_BUCKET {
+            @Override
+            RateLimiter create() {
+                return new TokenBucketRateLimiter(100, 1, 1);
+            }
+        },
+        GCRA {
+            @Override
+            RateLimiter create() {
+                return new GcraRateLimiter(100, 1, 1);
+            }
+        },
+        LEAKY_BUCKET {
+            @Override
+            RateLimiter create() {
+                return new LeakyBucketRateLimiter(100, 1, 1);
+            }
+        },
+        FIXED_WINDOW_COUNTER {
+            @Override
+            RateLimiter create() {
+                return new FixedWindowCounterRateLimiter(100, 100);
+            }
+        },
+        FIXED_WINDOW_TOKEN_BUCKET {
+            @Override
+            RateLimiter create() {
+                return new FixedWindowTokenBucketRateLimiter(100, 100);
+            }
+        },
+        SLIDING_WINDOW_COUNTER {
+            @Override
+            RateLimiter create() {
+                return new SlidingWindowCounterRateLimiter(100, 100);
+            }
+        },
+        MULTI_SLOT_SLIDING_WINDOW {
+            @Override
+            RateLimiter create() {
+                return new MultiSlotSlidingWindowRateLimiter(100, 100, 10);
+            }
+        },
+        SLIDING_WINDOW_LOG {
+            @Override
+            RateLimiter create() {
+                return new SlidingWindowLogRateLimiter(100, 100);
+            }
+        };
+
+        abstract RateLimiter create();
+    }
+
+    /*
+        Runs every algorithm and distribution with 1, 2, 4 ... up to the number of available cores,
+        with the gc profiler attached. Pass a single number to only run with that many threads.
+     */
+    public static void main(String[] args) throws RunnerException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int threads = args.length > 0 ? maxThreads : 1;
+
+        while (threads <= maxThreads) {
+            Options options = new OptionsBuilder()
+                    .include(RateLimiterBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .build();
+            new Runner(options).run();
+
+            if (threads == maxThreads)
+                break;
+            threads = Math.min(threads * 2, maxThreads);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package ratelimiter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+    Replays a recorded request trace through rate limiters, to see how the algorithms behave on real traffic.
+
+    A trace file is a header (MAGIC, VERSION) followed by one record per request: int customerId and int timestamp,
+    big endian, in the order the requests arrived. It is memory-mapped a part at a time, so traces of any size stream
+    through without being read onto the heap.
+
+        generate <trace> <requests> <customers> <UNIFORM|ZIPFIAN|HOT_KEY> <requestsPerTimeUnit>
+            writes a synthetic trace
+        replay <trace> <threads> [algorithm ...]
+            replays the trace through each algorithm (all of RateLimiterBenchmark.Algorithm by default) and reports
+            throughput, the allowed share and percentiles of the share of each customer's requests that was denied.
+            With one thread every decision is compared with those of the first algorithm.
+            With more threads the trace is split into interleaved blocks, so requests of a customer can be decided out of order.
+
+    The timed replay only keeps one bit per request, written a word at a time, and the per-customer counts are worked out
+    from those bits after the clock has stopped, so the throughput is that of the rate limiter rather than of the bookkeeping.
+ */
+public final class TraceReplay {
+    private static final int MAGIC = 0x524C5452;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 8;
+    // Records per mapping, mappings are limited to 2GB
+    private static final int RECORDS_PER_MAPPING = 1 << 27;
+    // Records per block a thread takes at a time in multi-threaded replays, a multiple of 64 so no two threads write the same decision word
+    private static final int RECORDS_PER_BLOCK = 1 << 16;
+    private static final int GENERATED_PER_CHUNK = 1 << 20;
+    private static final double[] PERCENTILES = {50, 90, 99, 100};
+
+    private TraceReplay() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 6 && args[0].equals("generate")) {
+            generate(Paths.get(args[1]), Long.parseLong(args[2]), Integer.parseInt(args[3]), CustomerIdDistribution.valueOf(args[4]), Integer.parseInt(args[5]));
+        } else if (args.length >= 3 && args[0].equals("replay")) {
+            List<RateLimiterBenchmark.Algorithm> algorithms = new ArrayList<>();
+            for (int i = 3; i < args.length; i++)
+                algorithms.add(RateLimiterBenchmark.Algorithm.valueOf(args[i]));
+            if (algorithms.isEmpty())
+                algorithms.addAll(Arrays.asList(RateLimiterBenchmark.Algorithm.values()));
+            replay(Paths.get(args[1]), Integer.parseInt(args[2]), algorithms);
+        } else {
+            System.err.println("Usage: generate <trace> <requests> <customers> <UNIFORM|ZIPFIAN|HOT_KEY> <requestsPerTimeUnit>");
+            System.err.println("       replay <trace> <threads> [algorithm ...]");
+            System.exit(2);
+        }
+    }
+
+    static void generate(Path trace, long requests, int customers, CustomerIdDistribution distribution, int requestsPerTimeUnit) throws IOException {
+        try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip());
+
+            for (long first = 0; first < requests; first += GENERATED_PER_CHUNK) {
+                int count = (int) Math.min(GENERATED_PER_CHUNK, requests - first);
+                int[] customerIds = distribution.generate(customers, count, first);
+                MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + first * RECORD_BYTES, (long) count * RECORD_BYTES);
+                for (int i = 0; i < count; i++)
+                    records.putInt(customerIds[i]).putInt((int) ((first + i) / requestsPerTimeUnit));
+            }
+        }
+    }
+
+    static void replay(Path trace, int threads, List<RateLimiterBenchmark.Algorithm> algorithms) throws Exception {
+        try (FileChannel channel = FileChannel.open(trace, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            channel.read(header, 0);
+            if (header.flip().getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException(trace + " is not a request trace");
+
+            long records = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+            MappedByteBuffer[] mappings = new MappedByteBuffer[(int) ((records + RECORDS_PER_MAPPING - 1) / RECORDS_PER_MAPPING)];
+            for (int i = 0; i < mappings.length; i++) {
+                long first = (long) i * RECORDS_PER_MAPPING;
+                mappings[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * RECORD_BYTES, Math.min(RECORDS_PER_MAPPING, records - first) * RECORD_BYTES);
+            }
+
+            System.out.printf(Locale.ROOT, "%d requests, %d thread(s)%n", records, threads);
+            System.out.printf(Locale.ROOT, "%-26s %12s %9s %9s %9s %9s %9s %10s%n",
+                    "algorithm", "requests/s", "allowed", "p50 deny", "p90 deny", "p99 deny", "max deny", "agreement");
+
+            // One bit per request, set if it was allowed
+            long decisionWords = (records + Long.SIZE - 1) / Long.SIZE;
+            if (decisionWords > Integer.MAX_VALUE - 8)
+                throw new IOException(trace + " has too many requests to keep a decision for each");
+
+            long[] firstDecisions = null;
+            for (RateLimiterBenchmark.Algorithm algorithm : algorithms) {
+                long[] decisions = new long[(int) decisionWords];
+                RateLimiter rateLimiter = algorithm.create();
+
+                long start = System.nanoTime();
+                if (threads == 1)
+                    replayRange(rateLimiter, mappings, 0, records, decisions);
+                else
+                    replayInParallel(rateLimiter, mappings, records, threads, decisions);
+                long elapsedNanos = System.nanoTime() - start;
+
+                String agreement = "";
+                if (threads == 1) {
+                    if (firstDecisions == null) {
+                        firstDecisions = decisions;
+                    } else {
+                        long different = 0;
+                        for (int word = 0; word < decisions.length; word++)
+                            different += Long.bitCount(decisions[word] ^ firstDecisions[word]);
+                        agreement = String.format(Locale.ROOT, "%.2f%%", 100.0 * (records - different) / records);
+                    }
+                }
+                report(algorithm, records, elapsedNanos, countByCustomer(mappings, records, decisions), agreement);
+            }
+        }
+    }
+
+    private static void replayInParallel(RateLimiter rateLimiter, MappedByteBuffer[] mappings, long records, int threads, long[] decisions) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> replays = new ArrayList<>();
+            long blocks = (records + RECORDS_PER_BLOCK - 1) / RECORDS_PER_BLOCK;
+            for (int thread = 0; thread < threads; thread++) {
+                int firstBlock = thread;
+                replays.add(executor.submit(() -> {
+                    for (long block = firstBlock; block < blocks; block += threads) {
+                        long first = block * RECORDS_PER_BLOCK;
+                        replayRange(rateLimiter, mappings, first, Math.min(records, first + RECORDS_PER_BLOCK), decisions);
+                    }
+                }));
+            }
+            for (Future<?> replay : replays)
+                replay.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // from has to be a multiple of 64, the decisions are written a whole word at a time
+    private static void replayRange(RateLimiter rateLimiter, MappedByteBuffer[] mappings, long from, long to, long[] decisions) {
+        long word = 0;
+        for (long record = from; record < to; record++) {
+            // Absolute reads, so threads can share the mappings
+            MappedByteBuffer mapping = mappings[(int) (record / RECORDS_PER_MAPPING)];
+            int offset = (int) (record % RECORDS_PER_MAPPING) * RECORD_BYTES;
+            if (rateLimiter.shouldAllowRequest(mapping.getInt(offset), mapping.getInt(offset + 4)))
+                word |= 1L << record;
+
+            if ((record & (Long.SIZE - 1)) == Long.SIZE - 1) {
+                decisions[(int) (record / Long.SIZE)] = word;
+                word = 0;
+            }
+        }
+        if ((to & (Long.SIZE - 1)) != 0)
+            decisions[(int) ((to - 1) / Long.SIZE)] = word;
+    }
+
+    // Customer ids mapped to their allowed count in the high and denied count in the low 32 bits
+    private static IntStateTable countByCustomer(MappedByteBuffer[] mappings, long records, long[] decisions) {
+        IntStateTable customerDecisions = new IntStateTable();
+        for (long record = 0; record < records; record++) {
+            MappedByteBuffer mapping = mappings[(int) (record / RECORDS_PER_MAPPING)];
+            int customerId = mapping.getInt((int) (record % RECORDS_PER_MAPPING) * RECORD_BYTES);
+            boolean allowed = (decisions[(int) (record / Long.SIZE)] & 1L << record) != 0;
+
+            long counts = customerDecisions.get(customerId);
+            long current = counts == CustomerStateStore.ABSENT ? 0 : counts;
+            customerDecisions.compareAndSet(customerId, counts, current + (allowed ? 1L << 32 : 1));
+        }
+        return customerDecisions;
+    }
+
+    private static void report(RateLimiterBenchmark.Algorithm algorithm, long records, long elapsedNanos, IntStateTable customerDecisions, String agreement) {
+        double[] denyRates = new double[(int) customerDecisions.size()];
+        long[] allowed = new long[1];
+        int[] customers = new int[1];
+        for (int segment = 0; segment < customerDecisions.segmentCount(); segment++) {
+            customerDecisions.forEachState(segment, (customerId, counts) -> {
+                long customerAllowed = counts >>> 32;
+                long customerDenied = counts & 0xFFFFFFFFL;
+                allowed[0] += customerAllowed;
+                denyRates[customers[0]++] = (double) customerDenied / (customerAllowed + customerDenied);
+            });
+        }
+        Arrays.sort(denyRates, 0, customers[0]);
+
+        StringBuilder percentiles = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            int index = Math.max(0, (int) Math.ceil(customers[0] * percentile / 100) - 1);
+            percentiles.append(String.format(Locale.ROOT, " %8.2f%%", customers[0] == 0 ? 0 : 100 * denyRates[index]));
+        }
+
+        System.out.printf(Locale.ROOT, "%-26s %12.0f %8.2f%%%s %10s%n",
+                algorithm, records / (elapsedNanos / 1e9), 100.0 * allowed[0] / Math.max(1, records), percentiles, agreement);
+    }
+}
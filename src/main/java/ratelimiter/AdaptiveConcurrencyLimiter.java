@@ -0,0 +1,85 @@
+package ratelimiter;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Limits how many requests are in flight at once instead of how many arrive per window, with the limit following what
+    the downstream can take (see ConcurrencyLimit) rather than being fixed up front. An allowed request takes a place until the
+    caller reports it with requestCompleted() or requestDropped(), which frees the place and feeds its latency to the limit.
+
+    There is one limit for all customers, as it protects the downstream rather than sharing it out. Put a per-customer
+    rate limiter in front of it for that. Deciding is one compareAndSet() on the in-flight count and never waits on the limit.
+ */
+public class AdaptiveConcurrencyLimiter implements RateLimiter {
+    private final ConcurrencyLimit concurrencyLimit;
+    private final AtomicInteger inFlight;
+    private final RateLimiterMetrics metrics;
+
+    public AdaptiveConcurrencyLimiter(ConcurrencyLimit concurrencyLimit) {
+        this.concurrencyLimit = concurrencyLimit;
+        this.inFlight = new AtomicInteger();
+        this.metrics = new RateLimiterMetrics(() -> 0);
+    }
+
+    @Override
+    public boolean shouldAllowRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide();
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    private boolean decide() {
+        int limit = concurrencyLimit.limit();
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit)
+                return false;
+            if (inFlight.compareAndSet(current, current + 1))
+                return true;
+            metrics.updateContended();
+        }
+    }
+
+    /*
+        An allowed request completed after latency, measured in the unit the ConcurrencyLimit was set up with.
+        A report with nothing in flight (say both the timeout and the completion of a request reported it) is ignored,
+        rather than letting the count go below zero and more requests in than the limit.
+     */
+    public void requestCompleted(long latency) {
+        int wasInFlight = leave();
+        if (wasInFlight > 0)
+            concurrencyLimit.sample(latency, wasInFlight, false);
+    }
+
+    // An allowed request failed or timed out, ignored like in requestCompleted() with nothing in flight
+    public void requestDropped() {
+        int wasInFlight = leave();
+        if (wasInFlight > 0)
+            concurrencyLimit.sample(0, wasInFlight, true);
+    }
+
+    // Takes a request out of the in-flight count unless it is already 0, and returns the count before
+    private int leave() {
+        while (true) {
+            int current = inFlight.get();
+            if (current == 0 || inFlight.compareAndSet(current, current - 1))
+                return current;
+            metrics.updateContended();
+        }
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public int limit() {
+        return concurrencyLimit.limit();
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,40 @@
+package ratelimiter;
+
+/*
+    Additive increase, multiplicative decrease: the limit goes up by one for every request that completes in time
+    and down to BACKOFF_PERCENT of itself for every one that is dropped or slower than latencyThreshold.
+    Like TCP's congestion window it keeps probing for more and backs off fast once the downstream is overloaded.
+ */
+public final class AimdConcurrencyLimit implements ConcurrencyLimit {
+    static final int BACKOFF_PERCENT = 90;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThreshold;
+    private volatile int limit;
+
+    public AimdConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, long latencyThreshold) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("Limits must be positive with minLimit <= initialLimit <= maxLimit");
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThreshold = latencyThreshold;
+        this.limit = initialLimit;
+    }
+
+    @Override
+    public int limit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized void sample(long latency, int inFlight, boolean dropped) {
+        if (dropped || latency > latencyThreshold) {
+            limit = Math.max(minLimit, Math.min(limit - 1, limit * BACKOFF_PERCENT / 100));
+        } else if (inFlight * 2 >= limit) {
+            // Only a limit that is actually being used has shown that it can go higher
+            limit = Math.min(maxLimit, limit + 1);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ratelimiter;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+    A clock that is read from another clock by one background thread every resolution, and in between is a volatile read.
+    Reading it costs requests next to nothing, in return the time it gives is up to a resolution behind.
+ */
+public final class CachedClock implements RateLimitClock, Closeable {
+    private final RateLimitClock source;
+    private final ScheduledExecutorService updater;
+    private volatile long nanoTime;
+
+    public CachedClock(long resolution, TimeUnit unit) {
+        this(RateLimitClock.SYSTEM, resolution, unit);
+    }
+
+    public CachedClock(RateLimitClock source, long resolution, TimeUnit unit) {
+        if (resolution <= 0)
+            throw new IllegalArgumentException("resolution must be positive");
+
+        this.source = source;
+        this.nanoTime = source.nanoTime();
+        this.updater = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cached-clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+        updater.scheduleAtFixedRate(this::update, resolution, resolution, unit);
+    }
+
+    @Override
+    public long nanoTime() {
+        return nanoTime;
+    }
+
+    // Reads the source clock right away, which the background thread otherwise does every resolution
+    public void update() {
+        nanoTime = source.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        updater.shutdownNow();
+    }
+}
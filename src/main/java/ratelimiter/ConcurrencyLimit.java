@@ -0,0 +1,15 @@
+package ratelimiter;
+
+/*
+    How many requests AdaptiveConcurrencyLimiter lets be in flight at once, worked out again from every request that completes.
+    limit() is read on every decision and must be cheap, sample() is called on every completion from any thread.
+ */
+public interface ConcurrencyLimit {
+    int limit();
+
+    /*
+        A request completed after latency (in whatever unit the caller measures it), with inFlight requests in flight
+        just before it completed. dropped means it failed or timed out, in which case latency says nothing.
+     */
+    void sample(long latency, int inFlight, boolean dropped);
+}
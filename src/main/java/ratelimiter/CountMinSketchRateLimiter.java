@@ -0,0 +1,143 @@
+package ratelimiter;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+    Sliding window counter like SlidingWindowCounterRateLimiter, but the counts of all customers share two Count-Min sketches,
+    one for the current and one for the previous window, so memory stays the same however many customer ids show up.
+
+    A sketch has depth rows of width counters, a customer counts in one counter per row picked by a different hash each,
+    and its count is the smallest of those counters. Other customers landing on the same counters can only add to them,
+    so a count is never below the real one: no customer gets more than maxAllowedRequests, but a customer sharing all of its
+    counters with heavy customers can be denied early. Wider rows make that less likely, more rows make it much less likely.
+    Requests of the same customer that are decided at the very same moment on different threads can get a few more through.
+
+    Windows are aligned to multiples of windowSize and the same for every customer, since the counters are shared.
+ */
+public class CountMinSketchRateLimiter implements RateLimiter {
+    private static final int DEFAULT_WIDTH = 1 << 16;
+    private static final int DEFAULT_DEPTH = 4;
+
+    private final int windowSize;
+    private final int maxAllowedRequests;
+    private final int width;
+    private final int depth;
+    private final RateLimiterMetrics metrics;
+    private volatile Windows windows;
+
+    public CountMinSketchRateLimiter(int windowSize, int maxAllowedRequests) {
+        this(windowSize, maxAllowedRequests, DEFAULT_WIDTH, DEFAULT_DEPTH);
+    }
+
+    public CountMinSketchRateLimiter(int windowSize, int maxAllowedRequests, int width, int depth) {
+        if (windowSize <= 0 || width <= 0 || depth <= 0)
+            throw new IllegalArgumentException("windowSize, width and depth must be positive");
+
+        this.windowSize = windowSize;
+        this.maxAllowedRequests = maxAllowedRequests;
+        // A power of two, so a counter is picked with a mask
+        this.width = Integer.highestOneBit(width * 2 - 1);
+        this.depth = depth;
+        // The sketches do not know which customers they hold
+        this.metrics = new RateLimiterMetrics(() -> 0);
+        this.windows = new Windows(Integer.MIN_VALUE, newSketch(), newSketch());
+    }
+
+    @Override
+    public boolean shouldAllowRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide(customerId, timestamp);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    private boolean decide(int customerId, int timestamp) {
+        int windowStart = Math.floorDiv(timestamp, windowSize) * windowSize;
+        Windows windows = this.windows;
+        if (windowStart > windows.currentWindowStart)
+            windows = roll(windowStart);
+
+        // A request from before the current window, which can only be late, is counted in the current window
+        int elapsedTime = Math.max(0, timestamp - windows.currentWindowStart);
+        double previousWindowWeight = 1.0 - (double) elapsedTime / windowSize;
+        int currentWindowCount = estimate(windows.currentWindow, customerId);
+        int effectiveRequestCount = (int) (currentWindowCount + estimate(windows.previousWindow, customerId) * previousWindowWeight);
+
+        if (effectiveRequestCount >= maxAllowedRequests)
+            return false;
+
+        /*
+            Conservative update: a counter already above the customer's new count holds other customers' requests as well,
+            and raising it would only make their counts worse
+         */
+        for (int row = 0; row < depth; row++)
+            windows.currentWindow.accumulateAndGet(counterOf(row, customerId), currentWindowCount + 1, Math::max);
+        return true;
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+
+    // Moves to the window starting at windowStart, once for all customers however many requests race to do it
+    private synchronized Windows roll(int windowStart) {
+        Windows windows = this.windows;
+        if (windowStart <= windows.currentWindowStart)
+            return windows;
+
+        /*
+            The current window only becomes the previous one if it is the window right before the new one.
+            The sketch that drops out is cleared and reused for the new window rather than allocating a new one per window.
+            A request that read the windows just before this can still see it being cleared, or count into it afterwards,
+            which like requests decided at the very same moment can get a few more through or deny a few early.
+         */
+        AtomicIntegerArray currentWindow = clear(windows.previousWindow);
+        AtomicIntegerArray previousWindow = (long) windowStart - windows.currentWindowStart == windowSize ? windows.currentWindow : clear(windows.currentWindow);
+        // The volatile write publishes the cleared counters to every thread that reads the windows afterwards
+        Windows rolled = new Windows(windowStart, currentWindow, previousWindow);
+        this.windows = rolled;
+        return rolled;
+    }
+
+    private static AtomicIntegerArray clear(AtomicIntegerArray sketch) {
+        for (int counter = 0; counter < sketch.length(); counter++)
+            sketch.setPlain(counter, 0);
+        return sketch;
+    }
+
+    private int estimate(AtomicIntegerArray sketch, int customerId) {
+        int count = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++)
+            count = Math.min(count, sketch.get(counterOf(row, customerId)));
+        return count;
+    }
+
+    private int counterOf(int row, int customerId) {
+        // Murmur3 finalizer over the customer id mixed with the row, so that every row spreads customers differently
+        int hash = customerId + row * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return row * width + (hash & (width - 1));
+    }
+
+    private AtomicIntegerArray newSketch() {
+        return new AtomicIntegerArray(width * depth);
+    }
+
+    private static final class Windows {
+        final int currentWindowStart;
+        final AtomicIntegerArray currentWindow;
+        final AtomicIntegerArray previousWindow;
+
+        Windows(int currentWindowStart, AtomicIntegerArray currentWindow, AtomicIntegerArray previousWindow) {
+            this.currentWindowStart = currentWindowStart;
+            this.currentWindow = currentWindow;
+            this.previousWindow = previousWindow;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ratelimiter;
+
+import java.util.Arrays;
+
+// Groups a batch of requests by customer: each request becomes a long of customerId in the high 32 bits and its index in the batch in the low 32 bits
+final class CustomerBatch {
+    private CustomerBatch() {
+    }
+
+    static void checkLengths(int[] customerIds, int[] timestamps, boolean[] results) {
+        if (customerIds.length != timestamps.length || customerIds.length != results.length)
+            throw new IllegalArgumentException("customerIds, timestamps and results must have the same length");
+    }
+
+    // Sorting the packed longs puts the requests of a customer next to each other, still in the order of the batch
+    static long[] sortByCustomer(int[] customerIds) {
+        long[] requests = new long[customerIds.length];
+        for (int i = 0; i < customerIds.length; i++)
+            requests[i] = ((long) customerIds[i] << 32) | i;
+        Arrays.sort(requests);
+        return requests;
+    }
+
+    static int customerId(long request) {
+        return (int) (request >> 32);
+    }
+
+    static int index(long request) {
+        return (int) request;
+    }
+
+    // End (exclusive) of the run of requests of the same customer that starts at from
+    static int endOfCustomer(long[] requests, int from) {
+        int customerId = customerId(requests[from]);
+        int to = from + 1;
+        while (to < requests.length && customerId(requests[to]) == customerId)
+            to++;
+        return to;
+    }
+}
@@ -0,0 +1,34 @@
+package ratelimiter;
+
+/*
+    Stops tracking customers once their state is back to what a new customer would start with (a full bucket,
+    an empty leaky bucket, an expired window), so that a rate limiter does not hold on to every customer it has ever seen.
+    A rate limiter tells its expiry about every customer it starts tracking, and lets it catch up with time on every request.
+ */
+public interface CustomerExpiry {
+    // Never expires anyone, the rate limiter keeps every customer it has seen
+    CustomerExpiry NONE = new CustomerExpiry() {
+        @Override
+        public void track(int customerId, int idleAt) {
+        }
+
+        @Override
+        public void advance(int timestamp, IdleCheck idleCheck) {
+        }
+    };
+
+    // The customer has started being tracked, and will be back to its default state at idleAt unless it sends more requests
+    void track(int customerId, int idleAt);
+
+    // Checks every tracked customer whose idleAt has been reached by timestamp
+    void advance(int timestamp, IdleCheck idleCheck);
+
+    // Implemented by the rate limiter, which is the only one that knows what its customers' state means
+    interface IdleCheck {
+        // Returned by expireIfIdle() once the customer is no longer tracked
+        int NOT_TRACKED = Integer.MIN_VALUE;
+
+        // Stops tracking the customer if it is idle at timestamp and returns NOT_TRACKED, otherwise returns its new idleAt
+        int expireIfIdle(int customerId, int timestamp);
+    }
+}
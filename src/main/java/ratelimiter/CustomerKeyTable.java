@@ -0,0 +1,211 @@
+package ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+    Gives every distinct key its own customer id, for keys that must never share a limit the way two keys hashed by
+    CustomerKeys can. Ids are handed out in the order keys are first seen, starting at 0.
+
+    Keys are looked up by their 64 bit CustomerKeys hash and then compared byte for byte with a copy kept of the key,
+    so a key that is already known is found without allocating or taking a lock; only a key seen for the first time is
+    copied, under the lock. Keys are equal under the same rules as in CustomerKeys: a CharSequence is its UTF-8 bytes
+    and a long its 8 little endian bytes.
+
+    Every key ever seen stays in the table, and so do their ids, which is what keeps them from being given to another key.
+    It grows with the number of distinct keys, so keys that come and go without bound belong in CustomerKeys instead.
+ */
+public final class CustomerKeyTable {
+    private static final VarHandle HASHES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle ARRAY_LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    // Marks a free slot, a key that hashes to it is stored under REMAPPED_EMPTY_HASH instead
+    private static final long EMPTY = 0;
+    private static final long REMAPPED_EMPTY_HASH = 1;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // Replaced by a larger table when it is half full, lookups that are still going on in the old one find the same keys there
+    private volatile Slots slots;
+    // Guarded by this
+    private int size;
+
+    public CustomerKeyTable() {
+        this(1024);
+    }
+
+    public CustomerKeyTable(int expectedKeys) {
+        if (expectedKeys < 0)
+            throw new IllegalArgumentException("expectedKeys must not be negative");
+
+        this.slots = new Slots(Integer.highestOneBit((int) Math.min(MAX_CAPACITY, Math.max(2, expectedKeys * 2L) * 2 - 1)));
+    }
+
+    public int idOf(long key) {
+        long hash = spread(CustomerKeys.hash(key));
+        Slots slots = this.slots;
+        for (int index = slots.indexOf(hash); ; index = slots.next(index)) {
+            long slotHash = slots.hash(index);
+            if (slotHash == EMPTY)
+                return add(hash, bytesOf(key));
+            byte[] slotKey = slots.keys[index];
+            if (slotHash == hash && slotKey.length == Long.BYTES && (long) ARRAY_LONGS.get(slotKey, 0) == key)
+                return slots.ids[index];
+        }
+    }
+
+    public int idOf(CharSequence key) {
+        long hash = spread(CustomerKeys.hash(key));
+        Slots slots = this.slots;
+        for (int index = slots.indexOf(hash); ; index = slots.next(index)) {
+            long slotHash = slots.hash(index);
+            if (slotHash == EMPTY)
+                return add(hash, key.toString().getBytes(StandardCharsets.UTF_8));
+            if (slotHash == hash && equalsUtf8(slots.keys[index], key))
+                return slots.ids[index];
+        }
+    }
+
+    public int idOf(byte[] key, int offset, int length) {
+        long hash = spread(CustomerKeys.hash(key, offset, length));
+        Slots slots = this.slots;
+        for (int index = slots.indexOf(hash); ; index = slots.next(index)) {
+            long slotHash = slots.hash(index);
+            if (slotHash == EMPTY)
+                return add(hash, Arrays.copyOfRange(key, offset, offset + length));
+            byte[] slotKey = slots.keys[index];
+            if (slotHash == hash && Arrays.equals(slotKey, 0, slotKey.length, key, offset, offset + length))
+                return slots.ids[index];
+        }
+    }
+
+    // Reads the bytes at absolute positions, so the buffer's position, limit and byte order are left as they are
+    public int idOf(ByteBuffer key, int offset, int length) {
+        long hash = spread(CustomerKeys.hash(key, offset, length));
+        Slots slots = this.slots;
+        for (int index = slots.indexOf(hash); ; index = slots.next(index)) {
+            long slotHash = slots.hash(index);
+            if (slotHash == EMPTY) {
+                byte[] copy = new byte[length];
+                key.get(offset, copy);
+                return add(hash, copy);
+            }
+            if (slotHash == hash && equalsBytes(slots.keys[index], key, offset, length))
+                return slots.ids[index];
+        }
+    }
+
+    // The number of distinct keys seen so far, which is also the id the next new key gets
+    public synchronized int size() {
+        return size;
+    }
+
+    // A key that is not in the slots the lookup saw, unless another thread added it since, which is checked again under the lock
+    private synchronized int add(long hash, byte[] key) {
+        Slots slots = this.slots;
+        int index = slots.indexOf(hash);
+        for (long slotHash; (slotHash = slots.hash(index)) != EMPTY; index = slots.next(index)) {
+            if (slotHash == hash && Arrays.equals(slots.keys[index], key))
+                return slots.ids[index];
+        }
+
+        if ((size + 1) * 2L > slots.hashes.length) {
+            if (slots.hashes.length == MAX_CAPACITY)
+                throw new IllegalStateException("A CustomerKeyTable holds at most " + MAX_CAPACITY / 2 + " keys");
+            slots = resize(slots);
+            index = slots.freeIndexOf(hash);
+        }
+
+        int id = size++;
+        slots.put(index, hash, key, id);
+        return id;
+    }
+
+    private Slots resize(Slots slots) {
+        Slots resized = new Slots(slots.hashes.length * 2);
+        for (int index = 0; index < slots.hashes.length; index++) {
+            long hash = slots.hashes[index];
+            if (hash != EMPTY)
+                resized.put(resized.freeIndexOf(hash), hash, slots.keys[index], slots.ids[index]);
+        }
+        this.slots = resized;
+        return resized;
+    }
+
+    private static long spread(long hash) {
+        return hash == EMPTY ? REMAPPED_EMPTY_HASH : hash;
+    }
+
+    // The 8 little endian bytes CustomerKeys hashes a long as
+    private static byte[] bytesOf(long key) {
+        byte[] bytes = new byte[Long.BYTES];
+        ARRAY_LONGS.set(bytes, 0, key);
+        return bytes;
+    }
+
+    // Compares the stored UTF-8 bytes with the key encoded on the fly, the same way CustomerKeys hashes it
+    private static boolean equalsUtf8(byte[] slotKey, CharSequence key) {
+        int length = 0;
+        for (int i = 0; i < key.length(); ) {
+            long encoded = CustomerKeys.utf8(key, i);
+            i += CustomerKeys.utf8Chars(encoded);
+
+            for (int b = 0; b < CustomerKeys.utf8Bytes(encoded); b++, length++) {
+                if (length == slotKey.length || slotKey[length] != (byte) (encoded >>> b * Byte.SIZE))
+                    return false;
+            }
+        }
+        return length == slotKey.length;
+    }
+
+    private static boolean equalsBytes(byte[] slotKey, ByteBuffer key, int offset, int length) {
+        if (slotKey.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (slotKey[i] != key.get(offset + i))
+                return false;
+        }
+        return true;
+    }
+
+    private static final class Slots {
+        // A slot's hash is written last with a release store, so a lookup that reads it sees the key and id it belongs to
+        final long[] hashes;
+        final byte[][] keys;
+        final int[] ids;
+
+        Slots(int capacity) {
+            this.hashes = new long[capacity];
+            this.keys = new byte[capacity][];
+            this.ids = new int[capacity];
+        }
+
+        long hash(int index) {
+            return (long) HASHES.getAcquire(hashes, index);
+        }
+
+        void put(int index, long hash, byte[] key, int id) {
+            keys[index] = key;
+            ids[index] = id;
+            HASHES.setRelease(hashes, index, hash);
+        }
+
+        int indexOf(long hash) {
+            return (int) hash & (hashes.length - 1);
+        }
+
+        int next(int index) {
+            return (index + 1) & (hashes.length - 1);
+        }
+
+        // Only for slots no other thread can see yet, or under the lock
+        int freeIndexOf(long hash) {
+            int index = indexOf(hash);
+            while (hashes[index] != EMPTY)
+                index = next(index);
+            return index;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+    Turns keys that are not ints (API keys, account numbers, bytes straight out of a network buffer) into the int customer ids
+    the rate limiters and state stores work with, without allocating or copying the key.
+
+    Bytes are hashed 8 at a time as little endian longs and the whole 64 bits are mixed before being folded into an int,
+    so similar keys end up far apart. A CharSequence is hashed as its UTF-8 bytes, encoded on the fly, which makes
+    "key-1" and the bytes of "key-1" in a buffer the same customer. A long is hashed like its 8 little endian bytes.
+
+    A customer id is only a 32 bit hash of the key, so different keys can end up with the same one, and so share a limit,
+    without anything noticing: among n keys about n^2 / 2^33 pairs do, one pair among 100 000 keys and a hundred among a million.
+    A long key cannot fit in an int without that either. Where keys must never share a limit, CustomerKeyTable gives every
+    distinct key an id of its own by comparing the whole key.
+ */
+public final class CustomerKeys {
+    private static final VarHandle ARRAY_LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BUFFER_LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xC2B2AE3D27D4EB4FL;
+
+    private CustomerKeys() {
+    }
+
+    public static int of(long key) {
+        return fold(hash(key));
+    }
+
+    public static int of(CharSequence key) {
+        return fold(hash(key));
+    }
+
+    public static int of(byte[] key, int offset, int length) {
+        return fold(hash(key, offset, length));
+    }
+
+    // Reads the bytes at absolute positions, so the buffer's position, limit and byte order are left as they are
+    public static int of(ByteBuffer key, int offset, int length) {
+        return fold(hash(key, offset, length));
+    }
+
+    // The whole 64 bit hashes the customer ids are folded from, also used by CustomerKeyTable
+    static long hash(long key) {
+        return mix(absorb(SEED, key) ^ Long.BYTES);
+    }
+
+    static long hash(CharSequence key) {
+        long hash = SEED;
+        long word = 0;
+        int length = 0;
+
+        for (int i = 0; i < key.length(); ) {
+            long encoded = utf8(key, i);
+            i += utf8Chars(encoded);
+
+            // Collected into words exactly like hash(byte[], int, int) reads them
+            for (int b = 0; b < utf8Bytes(encoded); b++) {
+                word |= (encoded >>> b * Byte.SIZE & 0xFFL) << (length % Long.BYTES * Byte.SIZE);
+                if (++length % Long.BYTES == 0) {
+                    hash = absorb(hash, word);
+                    word = 0;
+                }
+            }
+        }
+        return finish(hash, word, length);
+    }
+
+    static long hash(byte[] key, int offset, int length) {
+        checkRange(key.length, offset, length);
+
+        long hash = SEED;
+        int end = offset + length;
+        int i = offset;
+        for (; i + Long.BYTES <= end; i += Long.BYTES)
+            hash = absorb(hash, (long) ARRAY_LONGS.get(key, i));
+
+        long tail = 0;
+        for (int shift = 0; i < end; i++, shift += Byte.SIZE)
+            tail |= (key[i] & 0xFFL) << shift;
+        return finish(hash, tail, length);
+    }
+
+    static long hash(ByteBuffer key, int offset, int length) {
+        checkRange(key.limit(), offset, length);
+
+        long hash = SEED;
+        int end = offset + length;
+        int i = offset;
+        for (; i + Long.BYTES <= end; i += Long.BYTES)
+            hash = absorb(hash, (long) BUFFER_LONGS.get(key, i));
+
+        long tail = 0;
+        for (int shift = 0; i < end; i++, shift += Byte.SIZE)
+            tail |= (key.get(i) & 0xFFL) << shift;
+        return finish(hash, tail, length);
+    }
+
+    /*
+        The UTF-8 bytes of the character at index i of key, the first one in the lowest 8 bits, with the number of bytes
+        in bits 32 to 39 and the number of chars they encode (2 for a surrogate pair) from bit 40 on.
+     */
+    static long utf8(CharSequence key, int i) {
+        int c = key.charAt(i);
+        if (c < 0x80)
+            return utf8(c, 1, 1);
+        if (c < 0x800)
+            return utf8((0xC0 | c >>> 6) | (0x80 | c & 0x3F) << 8, 2, 1);
+        if (Character.isHighSurrogate((char) c) && i + 1 < key.length() && Character.isLowSurrogate(key.charAt(i + 1))) {
+            int codePoint = Character.toCodePoint((char) c, key.charAt(i + 1));
+            return utf8((0xF0 | codePoint >>> 18) | (0x80 | codePoint >>> 12 & 0x3F) << 8 | (0x80 | codePoint >>> 6 & 0x3F) << 16 | (0x80 | codePoint & 0x3F) << 24, 4, 2);
+        }
+        // Unpaired surrogates encode as '?', like String.getBytes() does
+        if (Character.isSurrogate((char) c))
+            return utf8('?', 1, 1);
+        return utf8((0xE0 | c >>> 12) | (0x80 | c >>> 6 & 0x3F) << 8 | (0x80 | c & 0x3F) << 16, 3, 1);
+    }
+
+    private static long utf8(int encoded, int bytes, int chars) {
+        return (long) chars << 40 | (long) bytes << 32 | encoded & 0xFFFFFFFFL;
+    }
+
+    static int utf8Bytes(long encoded) {
+        return (int) (encoded >>> 32) & 0xFF;
+    }
+
+    static int utf8Chars(long encoded) {
+        return (int) (encoded >>> 40);
+    }
+
+    private static void checkRange(int size, int offset, int length) {
+        if (offset < 0 || length < 0 || offset > size - length)
+            throw new IndexOutOfBoundsException("Key of " + length + " bytes at " + offset + " does not fit in " + size + " bytes");
+    }
+
+    private static long absorb(long hash, long word) {
+        return Long.rotateLeft(hash ^ word * MULTIPLIER, 31) * SEED;
+    }
+
+    // A tail of fewer than 8 bytes is absorbed as a word of its own, the length tells it apart from the same bytes followed by zeros
+    private static long finish(long hash, long tail, int length) {
+        if (length % Long.BYTES != 0)
+            hash = absorb(hash, tail);
+        return mix(hash ^ length);
+    }
+
+    // The finalizer of MurmurHash3, every bit of the input affects every bit of the result
+    private static long mix(long hash) {
+        hash = (hash ^ hash >>> 33) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ hash >>> 33) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ hash >>> 33;
+    }
+
+    private static int fold(long hash) {
+        return (int) (hash ^ hash >>> 32);
+    }
+}
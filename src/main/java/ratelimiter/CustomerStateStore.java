@@ -0,0 +1,19 @@
+package ratelimiter;
+
+/*
+    Where a rate limiter keeps the state of its customers: a single long per customer id.
+    The limiters pack whatever they need (timestamps, counters) into that long and update it with compareAndSet(),
+    so reading the state, deciding, and writing it back is atomic without any locking.
+ */
+public interface CustomerStateStore {
+    // Returned by get() for a customer that is not tracked, so it can never be used as a state itself
+    long ABSENT = Long.MIN_VALUE;
+
+    long get(int customerId);
+
+    // Expecting ABSENT starts tracking the customer, setting ABSENT stops tracking it
+    boolean compareAndSet(int customerId, long expectedState, long newState);
+
+    // Number of customers currently tracked
+    long size();
+}
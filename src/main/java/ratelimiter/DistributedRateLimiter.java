@@ -0,0 +1,176 @@
+package ratelimiter;
+
+/*
+    One node of a cluster that enforces a single global limit per customer. Instead of asking the coordinator on every request,
+    the node leases leaseSize permits of the customer's global quota at a time and admits requests from that lease locally.
+
+    Leased permits are already taken from the global quota, so the cluster together never admits more than the coordinator would.
+    A lease is good for leaseDuration time units from the timestamp it was taken at. With 1 using a lease is the same as the
+    coordinator admitting its permits at that very timestamp, whatever its rate limiter. Longer leases save round trips and are still
+    exact for the bucket rate limiters, whose limits only loosen over time, but a window based limit can be exceeded by the permits
+    of a lease that outlives its window.
+    What is left of an expired lease is dropped, so up to leaseSize permits per node can go unused.
+    When the coordinator grants nothing, that is remembered for the rest of the timestamp, so a customer over its limit
+    costs one round trip per timestamp rather than one per denied request.
+
+    Each customer's lease is one long in the local state store (see LeasedPermits), taken from with a compareAndSet(),
+    and dropped by the CustomerExpiry once it has expired.
+
+    decideRequest() reports the permits left in the lease as the requests remaining, which the node can admit for sure;
+    the coordinator may grant more. Once the lease is used up, or the coordinator has said no, what the next request gets
+    is up to the coordinator, so both are RateLimitDecision.UNKNOWN.
+ */
+public class DistributedRateLimiter implements RateLimiter {
+    // The remaining permits of a lease that the coordinator turned down at its leasedAt
+    private static final int NOTHING_GRANTED = -1;
+
+    private final QuotaLeaseTransport coordinator;
+    private final int leaseSize;
+    private final int leaseDuration;
+    private final CustomerStateStore customerLeases;
+    private final CustomerExpiry customerExpiry;
+    private final CustomerExpiry.IdleCheck idleCheck;
+    private final RateLimiterMetrics metrics;
+
+    public DistributedRateLimiter(QuotaLeaseTransport coordinator, int leaseSize, int leaseDuration) {
+        // Every lease expires, so the table only holds the customers seen within the last leaseDuration
+        this(coordinator, leaseSize, leaseDuration, new IntStateTable(), new TimingWheelExpiry());
+    }
+
+    public DistributedRateLimiter(QuotaLeaseTransport coordinator, int leaseSize, int leaseDuration, CustomerStateStore customerLeases) {
+        this(coordinator, leaseSize, leaseDuration, customerLeases, CustomerExpiry.NONE);
+    }
+
+    public DistributedRateLimiter(QuotaLeaseTransport coordinator, int leaseSize, int leaseDuration, CustomerStateStore customerLeases, CustomerExpiry customerExpiry) {
+        if (leaseSize <= 0 || leaseDuration <= 0)
+            throw new IllegalArgumentException("leaseSize and leaseDuration must be positive");
+
+        this.coordinator = coordinator;
+        this.leaseSize = leaseSize;
+        this.leaseDuration = leaseDuration;
+        this.customerLeases = customerLeases;
+        this.customerExpiry = customerExpiry;
+        this.idleCheck = this::expireIfIdle;
+        this.metrics = new RateLimiterMetrics(customerLeases::size);
+    }
+
+    @Override
+    public boolean shouldAllowRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = RateLimitDecision.isAllowed(decide(customerId, timestamp));
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    @Override
+    public long decideRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        long decision = decide(customerId, timestamp);
+        metrics.requestDecided(RateLimitDecision.isAllowed(decision));
+        metrics.stopTiming(startedAt);
+        return decision;
+    }
+
+    private long decide(int customerId, int timestamp) {
+        customerExpiry.advance(timestamp, idleCheck);
+
+        long lease;
+        while (true) {
+            lease = customerLeases.get(customerId);
+            if (lease != CustomerStateStore.ABSENT && LeasedPermits.remainingPermits(lease) == NOTHING_GRANTED && LeasedPermits.leasedAt(lease) == timestamp)
+                return RateLimitDecision.unknownQuota(false);
+            if (!isValid(lease, timestamp) || LeasedPermits.remainingPermits(lease) <= 0)
+                break;
+
+            long taken = LeasedPermits.pack(LeasedPermits.leasedAt(lease), LeasedPermits.remainingPermits(lease) - 1);
+            if (customerLeases.compareAndSet(customerId, lease, taken))
+                return allowedFrom(taken);
+            metrics.updateContended();
+        }
+
+        int granted = coordinator.leasePermits(customerId, timestamp, leaseSize);
+        if (granted <= 0) {
+            // Fails only if another thread got there first, whose lease or refusal is as recent as this one
+            long refused = LeasedPermits.pack(timestamp, NOTHING_GRANTED);
+            if (customerLeases.compareAndSet(customerId, lease, refused) && lease == CustomerStateStore.ABSENT)
+                customerExpiry.track(customerId, idleAt(refused));
+            return RateLimitDecision.unknownQuota(false);
+        }
+
+        // One permit is for this request, the rest join what is left of a lease another thread may have taken in the meantime
+        while (true) {
+            lease = customerLeases.get(customerId);
+            int remainingPermits = isValid(lease, timestamp) ? Math.max(0, LeasedPermits.remainingPermits(lease)) : 0;
+            // The granted permits are as good as new, and so is the lease they join
+            long renewed = LeasedPermits.pack(timestamp, remainingPermits + granted - 1);
+            if (customerLeases.compareAndSet(customerId, lease, renewed)) {
+                if (lease == CustomerStateStore.ABSENT)
+                    customerExpiry.track(customerId, idleAt(renewed));
+                return allowedFrom(renewed);
+            }
+            metrics.updateContended();
+        }
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+
+    // A request admitted from a lease, which has what the lease has left remaining
+    private static long allowedFrom(long lease) {
+        int remainingPermits = LeasedPermits.remainingPermits(lease);
+        return remainingPermits > 0 ? RateLimitDecision.pack(true, remainingPermits, 0) : RateLimitDecision.unknownQuota(true);
+    }
+
+    private boolean isValid(long lease, int timestamp) {
+        if (lease == CustomerStateStore.ABSENT)
+            return false;
+
+        long age = (long) timestamp - LeasedPermits.leasedAt(lease);
+        return age >= 0 && age < leaseDuration;
+    }
+
+    // When the lease has nothing left to admit from, a refusal only holds for its own timestamp
+    private int idleAt(long lease) {
+        long duration = LeasedPermits.remainingPermits(lease) == NOTHING_GRANTED ? 1 : leaseDuration;
+        return PackedStateRateLimiter.timeAfter(LeasedPermits.leasedAt(lease), duration);
+    }
+
+    private int expireIfIdle(int customerId, int timestamp) {
+        while (true) {
+            long lease = customerLeases.get(customerId);
+            if (lease == CustomerStateStore.ABSENT)
+                return CustomerExpiry.IdleCheck.NOT_TRACKED;
+
+            int idleAt = idleAt(lease);
+            if (idleAt > timestamp)
+                return idleAt;
+
+            // Fails if a request changed the lease in the meantime, in which case the new lease is checked again
+            if (customerLeases.compareAndSet(customerId, lease, CustomerStateStore.ABSENT)) {
+                metrics.customerExpired();
+                return CustomerExpiry.IdleCheck.NOT_TRACKED;
+            }
+        }
+    }
+}
+
+// A customer's lease packed into a long: leasedAt in the high 32 bits, remainingPermits in the low 32 bits
+final class LeasedPermits {
+    private LeasedPermits() {
+    }
+
+    static long pack(int leasedAt, int remainingPermits) {
+        return ((long) leasedAt << 32) | (remainingPermits & 0xFFFFFFFFL);
+    }
+
+    static int leasedAt(long lease) {
+        return (int) (lease >>> 32);
+    }
+
+    static int remainingPermits(long lease) {
+        return (int) lease;
+    }
+}
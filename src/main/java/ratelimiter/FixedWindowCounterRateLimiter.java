@@ -1,61 +1,77 @@
 package ratelimiter;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
-
-public class FixedWindowCounterRateLimiter implements RateLimiter {
-    private final ConcurrentMap<Integer, WindowCounter> customerWindowCounterMap;
+// Each customer's counter is a single long in the state store, see WindowCounter
+public class FixedWindowCounterRateLimiter extends PackedStateRateLimiter {
     private final int maxAllowedRequests;
     private final int windowSize;
-    private AtomicInteger currentWindowStart;
 
     public FixedWindowCounterRateLimiter(int maxAllowedRequests, int windowSize) {
+        this(maxAllowedRequests, windowSize, new IntStateTable());
+    }
+
+    public FixedWindowCounterRateLimiter(int maxAllowedRequests, int windowSize, CustomerStateStore customerWindowCounterMap) {
+        this(maxAllowedRequests, windowSize, customerWindowCounterMap, CustomerExpiry.NONE);
+    }
+
+    public FixedWindowCounterRateLimiter(int maxAllowedRequests, int windowSize, CustomerStateStore customerWindowCounterMap, CustomerExpiry customerExpiry) {
+        super(customerWindowCounterMap, customerExpiry);
         this.maxAllowedRequests = maxAllowedRequests;
         this.windowSize = windowSize;
-        this.customerWindowCounterMap = new ConcurrentHashMap<>();
-        currentWindowStart = new AtomicInteger(0);
     }
 
     @Override
-    public boolean shouldAllowRequest(int customerId, int timestamp) {
-        currentWindowStart.addAndGet((timestamp - currentWindowStart.get()) / windowSize * windowSize);
+    long admit(long windowCounter, int timestamp) {
+        if (windowCounter == CustomerStateStore.ABSENT || WindowCounter.lastUpdateTime(windowCounter) + windowSize <= timestamp) {
+            /*
+                Either a new user, or a new time window has started.
+                The window start is worked out from the timestamp itself rather than kept in a field shared by all customers,
+                so requests do not all write to the same place and the order in which customers are seen does not matter
+             */
+            return WindowCounter.pack(1, (timestamp / windowSize) * windowSize);
+        }
 
-        // An example implementation of using compute() to make it fully thread safe by avoiding separate get() and put() calls
-        customerWindowCounterMap.compute(customerId, (key, windowCounter) -> {
-            if (windowCounter == null || windowCounter.getLastUpdateTime() + windowSize <= timestamp) {
-                // Either a new user, or a new time window has started
-                return new WindowCounter(1, currentWindowStart.get());
-            }
+        if (WindowCounter.ongoingRequestCount(windowCounter) < maxAllowedRequests) {
+            // Allow request and increment the count
+            return WindowCounter.pack(WindowCounter.ongoingRequestCount(windowCounter) + 1, WindowCounter.lastUpdateTime(windowCounter));
+        }
 
-            if (windowCounter.getOngoingRequestCount() < maxAllowedRequests) {
-                // Allow request and increment the count
-                return new WindowCounter(windowCounter.getOngoingRequestCount() + 1, currentWindowStart.get());
-            }
+        // If request limit is reached there is nothing to update
+        return DENIED;
+    }
 
-            // If request limit is reached, return the same windowCounter (no update)
-            // A special workaround hack to ensure that request count goes higher than maxAllowedRequests so that the check in last line works
-            return new WindowCounter(windowCounter.getOngoingRequestCount() + 1, windowCounter.getLastUpdateTime());
-        });
+    @Override
+    long release(long windowCounter, int timestamp) {
+        if (WindowCounter.lastUpdateTime(windowCounter) != (timestamp / windowSize) * windowSize || WindowCounter.ongoingRequestCount(windowCounter) == 0)
+            return windowCounter;
+        return WindowCounter.pack(WindowCounter.ongoingRequestCount(windowCounter) - 1, WindowCounter.lastUpdateTime(windowCounter));
+    }
+
+    @Override
+    int remainingPermits(long windowCounter, int timestamp) {
+        return maxAllowedRequests - WindowCounter.ongoingRequestCount(windowCounter);
+    }
 
-        return customerWindowCounterMap.get(customerId).getOngoingRequestCount() <= maxAllowedRequests;
+    @Override
+    int idleAt(long windowCounter) {
+        // Once the window is over the next request starts a new one, just like for a new customer
+        return timeAfter(WindowCounter.lastUpdateTime(windowCounter), windowSize);
     }
 }
 
-class WindowCounter {
-    private final int ongoingRequestCount;
-    private final int lastUpdateTime;
+// A window counter packed into a long: lastUpdateTime in the high 32 bits, ongoingRequestCount in the low 32 bits
+final class WindowCounter {
+    private WindowCounter() {
+    }
 
-    public WindowCounter(int ongoingRequestCount, int lastUpdateTime) {
-        this.ongoingRequestCount = ongoingRequestCount;
-        this.lastUpdateTime = lastUpdateTime;
+    static long pack(int ongoingRequestCount, int lastUpdateTime) {
+        return ((long) lastUpdateTime << 32) | (ongoingRequestCount & 0xFFFFFFFFL);
     }
 
-    public int getOngoingRequestCount() {
-        return ongoingRequestCount;
+    static int ongoingRequestCount(long windowCounter) {
+        return (int) windowCounter;
     }
 
-    public int getLastUpdateTime() {
-        return lastUpdateTime;
+    static int lastUpdateTime(long windowCounter) {
+        return (int) (windowCounter >>> 32);
     }
 }
@@ -1,59 +1,88 @@
 package ratelimiter;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
-
-// This is not actually a famous rate limiting algo but the first rough attempt to implement it in some way
-public class FixedWindowTokenBucketRateLimiter implements RateLimiter {
-    // customer -> window start -> remaining tokens map
-    /*
-        Such a mapping allows us to not have to clear the map for every window start (which we would have to do with a customer -> remaining token map)
-        The downside is that this map keeps on growing and will need to be cleaned up
-     */
-    private final ConcurrentMap<Integer, ConcurrentMap<Integer, AtomicInteger>> customerRemainingTokensMap;
+/*
+    This is not actually a famous rate limiting algo but the first rough attempt to implement it in some way
+
+    customer -> (window epoch, remaining tokens) packed into a single long, see WindowTokens.
+    A bucket left over from an older epoch is simply treated as full, so there is no need to
+    clear anything when a new window starts and no per-window entries that have to be cleaned up later.
+ */
+public class FixedWindowTokenBucketRateLimiter extends PackedStateRateLimiter {
     private final int windowSize;
     private final int maxTokens;
-    private final AtomicInteger windowStart;
 
     public FixedWindowTokenBucketRateLimiter(int windowSize, int maxTokens) {
+        this(windowSize, maxTokens, new IntStateTable());
+    }
+
+    public FixedWindowTokenBucketRateLimiter(int windowSize, int maxTokens, CustomerStateStore customerRemainingTokensMap) {
+        this(windowSize, maxTokens, customerRemainingTokensMap, CustomerExpiry.NONE);
+    }
+
+    public FixedWindowTokenBucketRateLimiter(int windowSize, int maxTokens, CustomerStateStore customerRemainingTokensMap, CustomerExpiry customerExpiry) {
+        super(customerRemainingTokensMap, customerExpiry);
         this.windowSize = windowSize;
         this.maxTokens = maxTokens;
-        this.windowStart = new AtomicInteger(0);
-        this.customerRemainingTokensMap = new ConcurrentHashMap<>();
     }
 
     @Override
-    public boolean shouldAllowRequest(int customerId, int timestamp) {
-        // Move to the new window if the current window has expired
-        int newWindowStart = (timestamp / windowSize) * windowSize;
-        windowStart.updateAndGet(existing -> Math.max(existing, newWindowStart));
-
-        // Retrieve the remaining tokens for this customer or initialize if not present
-        ConcurrentMap<Integer, AtomicInteger> windowStartTokensRemainingMap = customerRemainingTokensMap.getOrDefault(customerId, new ConcurrentHashMap<>());
-        AtomicInteger remainingTokens = windowStartTokensRemainingMap.getOrDefault(windowStart, new AtomicInteger(maxTokens));
-
-        // Cleanup: Remove entries of expired windows
-        /*
-            If cleanup operation needs to be optimised then we can replace the map with a treeMap.
-            But that will impact the insertion complexity. It is a tradeoff
-         */
-        cleanupExpiredWindows(windowStartTokensRemainingMap);
-
-        if (remainingTokens.decrementAndGet() >= 0) {
+    long admit(long windowTokens, int timestamp) {
+        // The window of this request, worked out from the timestamp rather than kept in a field shared by all customers
+        int epoch = epochOf(timestamp);
+
+        // A new customer or a new window starts with all tokens, a window rollover is nothing more than a newer epoch
+        if (windowTokens == CustomerStateStore.ABSENT || WindowTokens.epoch(windowTokens) < epoch) {
+            windowTokens = WindowTokens.pack(epoch, maxTokens);
+        }
+
+        int remainingTokens = WindowTokens.remainingTokens(windowTokens);
+        if (remainingTokens > 0) {
             // Allow the request and decrement the tokens
-            windowStartTokensRemainingMap.put(windowStart.get(), remainingTokens);
-            customerRemainingTokensMap.put(customerId, windowStartTokensRemainingMap);
-            return true;
+            return WindowTokens.pack(WindowTokens.epoch(windowTokens), remainingTokens - 1);
         }
 
         // Request denied
-        return false;
+        return DENIED;
+    }
+
+    @Override
+    long release(long windowTokens, int timestamp) {
+        if (WindowTokens.epoch(windowTokens) != epochOf(timestamp))
+            return windowTokens;
+        return WindowTokens.pack(WindowTokens.epoch(windowTokens), Math.min(WindowTokens.remainingTokens(windowTokens) + 1, maxTokens));
+    }
+
+    @Override
+    int remainingPermits(long windowTokens, int timestamp) {
+        return WindowTokens.remainingTokens(windowTokens);
+    }
+
+    @Override
+    int idleAt(long windowTokens) {
+        // Once the window is over the next request starts with all tokens, just like a new customer
+        return (int) Math.min(Integer.MAX_VALUE, (WindowTokens.epoch(windowTokens) + 1L) * windowSize);
+    }
+
+    // Windows are numbered from the one starting at 0, rounding down so that negative timestamps get windows of their own too
+    private int epochOf(int timestamp) {
+        return Math.floorDiv(timestamp, windowSize);
+    }
+}
+
+// Remaining tokens of a window packed into a long: epoch (the window's number) in the high 32 bits, remainingTokens in the low 32 bits
+final class WindowTokens {
+    private WindowTokens() {
+    }
+
+    static long pack(int epoch, int remainingTokens) {
+        return ((long) epoch << 32) | (remainingTokens & 0xFFFFFFFFL);
+    }
+
+    static int epoch(long windowTokens) {
+        return (int) (windowTokens >>> 32);
     }
 
-    private void cleanupExpiredWindows(ConcurrentMap<Integer, AtomicInteger> windowStartTokensRemainingMap) {
-        // Remove expired window entries
-        int currentWindowStart = windowStart.get();
-        windowStartTokensRemainingMap.entrySet().removeIf(entry -> entry.getKey() < currentWindowStart);
+    static int remainingTokens(long windowTokens) {
+        return (int) windowTokens;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,84 @@
+package ratelimiter;
+
+/*
+    Generic Cell Rate Algorithm: a token bucket described by a single time instead of a refill time and a token count.
+    Tokens come back one every emission interval (refillWindow / refillRate), and each customer's state is its theoretical
+    arrival time: when its bucket would be full again if no more requests came. A request moves it one emission interval
+    further on, and is allowed as long as that leaves it no more than maxTokens emission intervals ahead of now.
+    Deciding is then one read, a comparison and one compareAndSet(), with no refill to work out.
+
+    Takes the same parameters as TokenBucketRateLimiter and admits the same requests, so either can replace the other.
+    Times are kept in fixed point with 16 bits for the fraction of a time unit, so emission intervals need not be whole time units.
+ */
+public class GcraRateLimiter extends PackedStateRateLimiter {
+    static final int FRACTION_BITS = 16;
+    static final long ONE_TIME_UNIT = 1L << FRACTION_BITS;
+
+    // Time between two tokens coming back, in fixed point
+    private final long emissionInterval;
+    // How far ahead of now the theoretical arrival time may get, maxTokens emission intervals
+    private final long burstTolerance;
+
+    public GcraRateLimiter(int maxTokens, int refillRate, int refillWindow) {
+        this(maxTokens, refillRate, refillWindow, new IntStateTable());
+    }
+
+    public GcraRateLimiter(int maxTokens, int refillRate, int refillWindow, CustomerStateStore customerArrivalTimes) {
+        this(maxTokens, refillRate, refillWindow, customerArrivalTimes, CustomerExpiry.NONE);
+    }
+
+    public GcraRateLimiter(int maxTokens, int refillRate, int refillWindow, CustomerStateStore customerArrivalTimes, CustomerExpiry customerExpiry) {
+        super(customerArrivalTimes, customerExpiry);
+
+        if (maxTokens < 0 || refillRate < 0 || refillWindow <= 0)
+            throw new IllegalArgumentException("maxTokens and refillRate must not be negative and refillWindow must be positive");
+
+        /*
+            Without a refill no token ever comes back, which is an emission interval longer than any time the
+            ints can tell apart, but still small enough that maxTokens of them cannot overflow
+         */
+        this.emissionInterval = refillRate == 0
+                ? Long.MAX_VALUE / 4 / (maxTokens + 1)
+                : Math.max(1, ((long) refillWindow << FRACTION_BITS) / refillRate);
+        this.burstTolerance = maxTokens * emissionInterval;
+    }
+
+    @Override
+    long admit(long arrivalTime, int timestamp) {
+        long now = (long) timestamp << FRACTION_BITS;
+        // A theoretical arrival time in the past is a full bucket, just like a new customer
+        long newArrivalTime = (arrivalTime == CustomerStateStore.ABSENT ? now : Math.max(arrivalTime, now)) + emissionInterval;
+
+        if (newArrivalTime - now > burstTolerance)
+            return DENIED;
+        return newArrivalTime;
+    }
+
+    @Override
+    int idleAt(long arrivalTime) {
+        // From the theoretical arrival time on the bucket is full again
+        return (int) Math.min(Integer.MAX_VALUE, ceilToTimeUnit(arrivalTime));
+    }
+
+    @Override
+    long release(long arrivalTime, int timestamp) {
+        return arrivalTime - emissionInterval;
+    }
+
+    @Override
+    int remainingPermits(long arrivalTime, int timestamp) {
+        // Each request takes one more emission interval of the burst tolerance that is left
+        long ahead = arrivalTime - ((long) timestamp << FRACTION_BITS);
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, burstTolerance - ahead) / emissionInterval);
+    }
+
+    @Override
+    int permitAvailableAt(long arrivalTime, int timestamp) {
+        // Allowed once the theoretical arrival time is no more than burstTolerance ahead after taking one more emission interval
+        return (int) Math.min(Integer.MAX_VALUE, ceilToTimeUnit(arrivalTime + emissionInterval - burstTolerance));
+    }
+
+    static long ceilToTimeUnit(long time) {
+        return Math.floorDiv(time + ONE_TIME_UNIT - 1, ONE_TIME_UNIT);
+    }
+}
@@ -0,0 +1,104 @@
+package ratelimiter;
+
+import java.util.function.IntUnaryOperator;
+
+/*
+    Admits a request only if its customer's limit, its tenant's limit and the global limit all allow it, and if one of them
+    does not, takes nothing from any of them.
+
+    Each level is an ordinary rate limiter keeping its state as a packed long: the customer level keyed by customer id,
+    the tenant level by tenant id and the global level under GLOBAL_KEY. A tenant's state is shared by all of its customers,
+    so it cannot live in the long of any one customer. The levels are taken from one after another, from the least to the
+    most contended, each with one lookup and a compareAndSet() (retried only if another request got in first), and once
+    a level denies, whatever was taken from the levels before it is given back with another lookup and compareAndSet() each.
+    A request denied by the customer level, the usual case under load, costs a single lookup.
+
+    So nothing is ever taken for a denied request in the end, but it is not atomic: until it is given back, other requests
+    of the same customer or tenant see those permits as taken and can be denied for it.
+    decideRequest() works the remaining requests and the wait out from the states the levels decided on, with no more lookups:
+    for an allowed request the fewest remaining and the longest wait of the three levels, for a denied one the wait of the
+    level that denied it.
+ */
+public class HierarchicalRateLimiter implements RateLimiter {
+    static final int GLOBAL_KEY = 0;
+
+    private final PackedStateRateLimiter customerLimit;
+    private final PackedStateRateLimiter tenantLimit;
+    private final PackedStateRateLimiter globalLimit;
+    private final IntUnaryOperator tenantOfCustomer;
+    private final RateLimiterMetrics metrics;
+
+    public HierarchicalRateLimiter(RateLimiter customerLimit, RateLimiter tenantLimit, RateLimiter globalLimit, IntUnaryOperator tenantOfCustomer) {
+        this.customerLimit = level(customerLimit);
+        this.tenantLimit = level(tenantLimit);
+        this.globalLimit = level(globalLimit);
+        this.tenantOfCustomer = tenantOfCustomer;
+        // Contention and expiry are counted by each level
+        this.metrics = new RateLimiterMetrics(() -> customerLimit.metrics().trackedCustomers());
+    }
+
+    @Override
+    public boolean shouldAllowRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide(customerId, tenantOfCustomer.applyAsInt(customerId), timestamp);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    @Override
+    public long decideRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        long decision = decideWithQuota(customerId, tenantOfCustomer.applyAsInt(customerId), timestamp);
+        metrics.requestDecided(RateLimitDecision.isAllowed(decision));
+        metrics.stopTiming(startedAt);
+        return decision;
+    }
+
+    private boolean decide(int customerId, int tenantId, int timestamp) {
+        if (!customerLimit.decide(customerId, timestamp))
+            return false;
+        if (!tenantLimit.decide(tenantId, timestamp)) {
+            customerLimit.giveBack(customerId, timestamp);
+            return false;
+        }
+        if (!globalLimit.decide(GLOBAL_KEY, timestamp)) {
+            tenantLimit.giveBack(tenantId, timestamp);
+            customerLimit.giveBack(customerId, timestamp);
+            return false;
+        }
+        return true;
+    }
+
+    // Like decide(), the decision of each level coming with its quota
+    private long decideWithQuota(int customerId, int tenantId, int timestamp) {
+        long customerDecision = customerLimit.decideWithQuota(customerId, timestamp);
+        if (!RateLimitDecision.isAllowed(customerDecision))
+            return customerDecision;
+
+        long tenantDecision = tenantLimit.decideWithQuota(tenantId, timestamp);
+        if (!RateLimitDecision.isAllowed(tenantDecision)) {
+            customerLimit.giveBack(customerId, timestamp);
+            return tenantDecision;
+        }
+
+        long globalDecision = globalLimit.decideWithQuota(GLOBAL_KEY, timestamp);
+        if (!RateLimitDecision.isAllowed(globalDecision)) {
+            tenantLimit.giveBack(tenantId, timestamp);
+            customerLimit.giveBack(customerId, timestamp);
+            return globalDecision;
+        }
+        return RateLimitDecision.stricter(customerDecision, RateLimitDecision.stricter(tenantDecision, globalDecision));
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+
+    private static PackedStateRateLimiter level(RateLimiter rateLimiter) {
+        if (!(rateLimiter instanceof PackedStateRateLimiter))
+            throw new IllegalArgumentException("Only rate limiters keeping each customer's state in a CustomerStateStore can be levels");
+        return (PackedStateRateLimiter) rateLimiter;
+    }
+}
@@ -0,0 +1,123 @@
+package ratelimiter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Takes the pressure off customers that many threads send requests for at once, which would otherwise all retry a
+    compareAndSet() on the same state. Such a hot customer is spotted by a lost compareAndSet() race. From then on a request
+    for it takes a lease of several permits from its state in one compareAndSet(), and further requests on the same stripe
+    (threads are spread over stripes) are admitted from that lease without touching the shared state.
+
+    Leased permits are taken from the state up front, so a customer is never admitted more than by the rate limiter itself.
+    A lease is only good for the timestamp it was taken at, which makes using it the same as admitting its permits
+    one after another at that timestamp, whatever the rate limiter. Permits a lease has left when its stripe moves on to
+    another timestamp or customer are given back to the state (see PackedStateRateLimiter.giveBack()), so nothing is lost over time.
+    What leasing costs is that up to slack permits of a customer can sit in the leases of other stripes while its requests are denied.
+    decideRequest() reports what the customer's state has left, which leaves out those leased permits.
+ */
+public class HotKeyLeasingRateLimiter implements RateLimiter {
+    private static final long HOT = 1L << 32;
+    private static final int HOT_CUSTOMER_SLOTS = 256;
+
+    private final PackedStateRateLimiter rateLimiter;
+    private final int leaseSize;
+    private final Lease[] leases;
+    private final AtomicLongArray hotCustomers;
+    private final RateLimiterMetrics metrics;
+
+    public HotKeyLeasingRateLimiter(RateLimiter rateLimiter, int slack) {
+        if (!(rateLimiter instanceof PackedStateRateLimiter))
+            throw new IllegalArgumentException("Only rate limiters keeping each customer's state in a CustomerStateStore can lease permits");
+        if (slack <= 0)
+            throw new IllegalArgumentException("slack must be positive");
+
+        this.rateLimiter = (PackedStateRateLimiter) rateLimiter;
+        // At least one permit per lease, so with a small slack there are fewer stripes
+        int stripeCount = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), slack));
+        this.leaseSize = slack / stripeCount;
+        this.leases = new Lease[stripeCount];
+        for (int i = 0; i < stripeCount; i++)
+            leases[i] = new Lease();
+        this.hotCustomers = new AtomicLongArray(HOT_CUSTOMER_SLOTS);
+        // Contention and expiry are counted by the rate limiter the leases are taken from
+        this.metrics = new RateLimiterMetrics(() -> rateLimiter.metrics().trackedCustomers());
+    }
+
+    @Override
+    public boolean shouldAllowRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide(customerId, timestamp);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    @Override
+    public long decideRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide(customerId, timestamp);
+        long decision = rateLimiter.withQuota(customerId, timestamp, allowed);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return decision;
+    }
+
+    private boolean decide(int customerId, int timestamp) {
+        int hotSlot = (customerId * 0x9E3779B9 >>> 16) & (HOT_CUSTOMER_SLOTS - 1);
+        long hotCustomer = HOT | Integer.toUnsignedLong(customerId);
+
+        if (hotCustomers.get(hotSlot) != hotCustomer) {
+            long acquired = rateLimiter.acquire(customerId, timestamp, 1);
+            if (PackedStateRateLimiter.lostRaces(acquired) > 0)
+                hotCustomers.set(hotSlot, hotCustomer);
+            return PackedStateRateLimiter.acquiredPermits(acquired) > 0;
+        }
+
+        Lease lease = leases[(int) Thread.currentThread().getId() * 0x9E3779B9 >>> 16 & (leases.length - 1)];
+        synchronized (lease) {
+            if (lease.customerId == customerId) {
+                if (lease.timestamp == timestamp && lease.remainingPermits > 0) {
+                    lease.remainingPermits--;
+                    lease.usedPermits++;
+                    return true;
+                }
+                // The last lease served nothing but the request that took it, so the customer has cooled down
+                if (lease.timestamp != timestamp && lease.usedPermits <= 1 && lease.remainingPermits > 0)
+                    hotCustomers.compareAndSet(hotSlot, hotCustomer, 0);
+            }
+            returnLease(lease);
+
+            int acquired = PackedStateRateLimiter.acquiredPermits(rateLimiter.acquire(customerId, timestamp, leaseSize));
+            lease.customerId = customerId;
+            lease.timestamp = timestamp;
+            lease.remainingPermits = Math.max(0, acquired - 1);
+            lease.usedPermits = 1;
+            return acquired > 0;
+        }
+    }
+
+    // Gives the permits the stripe's lease has not used back to the state they were taken from, before the lease is replaced
+    private void returnLease(Lease lease) {
+        for (; lease.remainingPermits > 0; lease.remainingPermits--)
+            rateLimiter.giveBack(lease.customerId, lease.timestamp);
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+
+    public int leaseSize() {
+        return leaseSize;
+    }
+
+    // Permits taken from one customer's state, only to be handed out on the stripe that holds the lease
+    private static final class Lease {
+        int customerId;
+        int timestamp;
+        int remainingPermits;
+        int usedPermits;
+        // Keeps leases that are allocated one after another off each other's cache line
+        long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
@@ -0,0 +1,21 @@
+package ratelimiter;
+
+/*
+    A coordinator living in the same JVM as its nodes, so that a whole cluster can be run in one process.
+    The global quota is an ordinary rate limiter, a lease of n permits is n requests admitted at once on it.
+ */
+public class InProcessQuotaLeaseTransport implements QuotaLeaseTransport {
+    private final PackedStateRateLimiter globalRateLimiter;
+
+    public InProcessQuotaLeaseTransport(RateLimiter globalRateLimiter) {
+        if (!(globalRateLimiter instanceof PackedStateRateLimiter))
+            throw new IllegalArgumentException("Only rate limiters keeping each customer's state in a CustomerStateStore can lease permits");
+
+        this.globalRateLimiter = (PackedStateRateLimiter) globalRateLimiter;
+    }
+
+    @Override
+    public int leasePermits(int customerId, int timestamp, int permits) {
+        return PackedStateRateLimiter.acquiredPermits(globalRateLimiter.acquire(customerId, timestamp, permits));
+    }
+}
@@ -0,0 +1,68 @@
+package ratelimiter;
+
+import java.util.Arrays;
+
+/*
+    Fixed size rings of ints laid out back to back in int[] chunks, for per-customer state that does not fit in a single long.
+    The state store then only maps the customer to its ring. Chunks are only ever added, the ring of a customer that
+    has expired is handed out again to the next new customer. A ring is read and written holding the lock of its customer.
+ */
+abstract class IntRings {
+    private static final int CHUNK_INTS = 1 << 20;
+
+    private final int ringInts;
+    private final int ringsPerChunk;
+    private final Object[] locks;
+    private volatile int[][] chunks;
+    private int allocatedRings;
+    private int[] freeRings;
+    private int freeRingCount;
+
+    IntRings(int ringInts) {
+        this.ringInts = ringInts;
+        this.ringsPerChunk = Math.max(1, CHUNK_INTS / ringInts);
+        this.locks = new Object[Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 16 - 1) << 1];
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        this.chunks = new int[0][];
+        this.freeRings = new int[0];
+    }
+
+    // Sets up a ring that is handed out again after being freed, new rings start out as zeros
+    abstract void reset(int[] chunk, int offset);
+
+    Object lockFor(int customerId) {
+        return locks[(customerId * 0x9E3779B9 >>> 16) & (locks.length - 1)];
+    }
+
+    synchronized int allocate() {
+        if (freeRingCount > 0) {
+            int ring = freeRings[--freeRingCount];
+            reset(chunkOf(ring), offsetOf(ring));
+            return ring;
+        }
+
+        int ring = allocatedRings++;
+        int chunk = ring / ringsPerChunk;
+        if (chunk == chunks.length) {
+            int[][] grown = Arrays.copyOf(chunks, chunk + 1);
+            grown[chunk] = new int[ringsPerChunk * ringInts];
+            chunks = grown;
+        }
+        return ring;
+    }
+
+    synchronized void free(int ring) {
+        if (freeRingCount == freeRings.length)
+            freeRings = Arrays.copyOf(freeRings, Math.max(16, freeRingCount * 2));
+        freeRings[freeRingCount++] = ring;
+    }
+
+    int[] chunkOf(int ring) {
+        return chunks[ring / ringsPerChunk];
+    }
+
+    int offsetOf(int ring) {
+        return (ring % ringsPerChunk) * ringInts;
+    }
+}
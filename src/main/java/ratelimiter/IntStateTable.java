@@ -0,0 +1,70 @@
+package ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/*
+    Customer states stored inline in an int[] of keys and a long[] of states per segment, see OpenAddressingStateTable.
+    Compared to a ConcurrentHashMap<Integer, ...> there is no node, no boxed key and no value object per customer,
+    an entry costs 12 bytes plus the free slots kept to make probing short.
+ */
+public final class IntStateTable extends OpenAddressingStateTable {
+    public IntStateTable() {
+        this(1024);
+    }
+
+    public IntStateTable(int expectedCustomers) {
+        this(expectedCustomers, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public IntStateTable(int expectedCustomers, int concurrencyLevel) {
+        super(expectedCustomers, concurrencyLevel, HeapSlots::new);
+    }
+
+    private static final class HeapSlots extends Slots {
+        private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+        private static final VarHandle STATES = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final int[] keys;
+        private final long[] states;
+
+        HeapSlots(int capacity) {
+            super(capacity);
+            this.keys = new int[capacity];
+            this.states = new long[capacity];
+            Arrays.fill(states, ABSENT);
+        }
+
+        @Override
+        int key(int index) {
+            return (int) KEYS.getAcquire(keys, index);
+        }
+
+        @Override
+        int claimKey(int index, int customerId) {
+            return (int) KEYS.compareAndExchange(keys, index, FREE, customerId);
+        }
+
+        @Override
+        long state(int index) {
+            return (long) STATES.getVolatile(states, index);
+        }
+
+        @Override
+        boolean compareAndSetState(int index, long expectedState, long newState) {
+            return STATES.compareAndSet(states, index, expectedState, newState);
+        }
+
+        @Override
+        long getAndSetState(int index, long newState) {
+            return (long) STATES.getAndSet(states, index, newState);
+        }
+
+        @Override
+        void put(int index, int customerId, long state) {
+            keys[index] = customerId;
+            states[index] = state;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ratelimiter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+    Histogram of nanosecond durations in the style of HdrHistogram: every power of two is split into 16 equally wide buckets,
+    so a recorded value is off by at most 1/16th of itself, and the whole long range fits in under a thousand counters.
+    Recording is one atomic increment and never allocates.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+
+    LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+    }
+
+    void record(long nanos) {
+        counts.getAndIncrement(bucketOf(Math.max(0, nanos)));
+    }
+
+    public long count() {
+        long count = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++)
+            count += counts.get(bucket);
+        return count;
+    }
+
+    // The highest value of the bucket holding the given percentile (0 to 100) of the recorded values, 0 if nothing was recorded
+    public long valueAtPercentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            snapshot[bucket] = counts.get(bucket);
+            total += snapshot[bucket];
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, Math.max(0, percentile)) / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += snapshot[bucket];
+            if (seen >= rank)
+                return highestValueOf(bucket);
+        }
+        return highestValueOf(BUCKETS - 1);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each, above that the top SUB_BUCKET_BITS bits below the highest one bit pick the bucket
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int shift = Long.SIZE - SUB_BUCKET_BITS - 1 - Long.numberOfLeadingZeros(value);
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowestValue = (SUB_BUCKETS + (long) (bucket % SUB_BUCKETS)) << shift;
+        return lowestValue + (1L << shift) - 1;
+    }
+}
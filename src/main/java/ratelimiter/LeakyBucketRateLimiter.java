@@ -1,11 +1,7 @@
 package ratelimiter;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-
-public class LeakyBucketRateLimiter implements RateLimiter {
-    private final ConcurrentMap<Integer, LeakyBucket> customerBucketsMap;
-
+// Each customer's bucket is a single long in the state store, see LeakyBucket
+public class LeakyBucketRateLimiter extends PackedStateRateLimiter {
     /*
        Different from token bucket in the sense that token bucket refills tokens regularly
        whereas leaky bucket refills only as per leakRate, when tokens become free
@@ -15,67 +11,122 @@ public class LeakyBucketRateLimiter implements RateLimiter {
     private final int leakWindow;
 
     public LeakyBucketRateLimiter(int maxRequestCapacity, int leakRate, int leakWindow) {
-        this.customerBucketsMap = new ConcurrentHashMap<>();
+        this(maxRequestCapacity, leakRate, leakWindow, new IntStateTable());
+    }
+
+    public LeakyBucketRateLimiter(int maxRequestCapacity, int leakRate, int leakWindow, CustomerStateStore customerBucketsMap) {
+        this(maxRequestCapacity, leakRate, leakWindow, customerBucketsMap, CustomerExpiry.NONE);
+    }
+
+    public LeakyBucketRateLimiter(int maxRequestCapacity, int leakRate, int leakWindow, CustomerStateStore customerBucketsMap, CustomerExpiry customerExpiry) {
+        super(customerBucketsMap, customerExpiry);
+
+        if (maxRequestCapacity > LeakyBucket.MAX_REQUESTS)
+            throw new IllegalArgumentException("maxRequestCapacity can be at most " + LeakyBucket.MAX_REQUESTS);
+
         this.maxRequestCapacity = maxRequestCapacity;
         this.leakRate = leakRate;
         this.leakWindow = leakWindow;
     }
 
     @Override
-    public boolean shouldAllowRequest(int customerId, int timestamp) {
-        processAndLeakRequests(customerId, timestamp);
+    long admit(long bucket, int timestamp) {
+        long leaked = bucket == CustomerStateStore.ABSENT ? LeakyBucket.pack(0, timestamp) : processAndLeakRequests(bucket, timestamp);
+        long currentRequestCount = LeakyBucket.currentRequestCount(leaked);
 
-        LeakyBucket bucket = customerBucketsMap.get(customerId);
+        // Room for a whole request, the count can be a fraction of a request above a whole number while a request is leaking
+        if (currentRequestCount + LeakyBucket.ONE_REQUEST <= maxRequestCapacity * LeakyBucket.ONE_REQUEST) {
+            return LeakyBucket.pack(currentRequestCount + LeakyBucket.ONE_REQUEST, LeakyBucket.lastUpdatedAt(leaked));
+        }
 
-        int currentRequestCount = bucket.getCurrentRequestCount();
+        return DENIED;
+    }
 
-        if (currentRequestCount < maxRequestCapacity) {
-            customerBucketsMap.put(customerId, new LeakyBucket(currentRequestCount + 1, timestamp));
-            return true;
-        }
+    @Override
+    int idleAt(long bucket) {
+        // The bucket is empty again once enough time has passed to leak every request in it
+        long currentRequestCount = LeakyBucket.currentRequestCount(bucket);
+        if (currentRequestCount <= 0)
+            return LeakyBucket.lastUpdatedAt(bucket);
+        if (leakRate <= 0)
+            return Integer.MAX_VALUE;
+
+        return timeAfter(LeakyBucket.lastUpdatedAt(bucket), timeToLeak(currentRequestCount));
+    }
+
+    @Override
+    long release(long bucket, int timestamp) {
+        // If the request has leaked already there is nothing left to take out
+        return LeakyBucket.pack(Math.max(0, LeakyBucket.currentRequestCount(bucket) - LeakyBucket.ONE_REQUEST), LeakyBucket.lastUpdatedAt(bucket));
+    }
+
+    @Override
+    int remainingPermits(long bucket, int timestamp) {
+        // Leaked up to timestamp by admit() already, only room for whole requests counts
+        return (int) ((maxRequestCapacity * LeakyBucket.ONE_REQUEST - LeakyBucket.currentRequestCount(bucket)) / LeakyBucket.ONE_REQUEST);
+    }
 
-        return false;
+    @Override
+    int permitAvailableAt(long bucket, int timestamp) {
+        if (leakRate <= 0 || maxRequestCapacity <= 0)
+            return Integer.MAX_VALUE;
+
+        // Long enough after lastUpdatedAt to leak everything above capacity, plus the one request that makes room
+        long requestsToLeak = LeakyBucket.currentRequestCount(bucket) + LeakyBucket.ONE_REQUEST - maxRequestCapacity * LeakyBucket.ONE_REQUEST;
+        return timeAfter(LeakyBucket.lastUpdatedAt(bucket), timeToLeak(requestsToLeak));
     }
 
     // "Leak requests" means take out requests that have been processed by now
-    private void processAndLeakRequests(int customerId, int timestamp) {
-        if (!customerBucketsMap.containsKey(customerId)) {
-            LeakyBucket bucket = new LeakyBucket(0, timestamp);
-            customerBucketsMap.put(customerId, bucket);
-            return;
-        }
+    private long processAndLeakRequests(long bucket, int timestamp) {
+        long elapsedTime = timestamp - LeakyBucket.lastUpdatedAt(bucket);
+        if (elapsedTime <= 0)
+            return bucket;
 
-         /*
-            Ideally for concurrent situations, get() and put() separately are susceptible to race condition.
-            In order to fix it, use compute() to combine the logic for checking and then updating map
-         */
-        LeakyBucket bucket = customerBucketsMap.get(customerId);
-        int lastUpdatedAt = bucket.getLastUpdatedAt();
-        int currentRequestCount = bucket.getCurrentRequestCount();
-        int leakedRequests = ((timestamp - lastUpdatedAt) / leakWindow) * leakRate;
+        // Long enough to leak even a full bucket, which also keeps the multiplications below from overflowing
+        if (elapsedTime * leakRate >= (long) maxRequestCapacity * leakWindow)
+            return LeakyBucket.pack(0, timestamp);
 
+        // Counted in fixed point, so the part of a request that has leaked by now is not lost
+        long leakedRequests = elapsedTime * leakRate * LeakyBucket.ONE_REQUEST / leakWindow;
         if (leakedRequests > 0) {
-            int remainingRequests = Math.max(0, currentRequestCount - leakedRequests);
-            LeakyBucket newBucket = new LeakyBucket(remainingRequests, timestamp);
-            customerBucketsMap.put(customerId, newBucket);
+            long remainingRequests = Math.max(0, LeakyBucket.currentRequestCount(bucket) - leakedRequests);
+            return LeakyBucket.pack(remainingRequests, timestamp);
         }
+
+        /*
+            Only a leak moves lastUpdatedAt. Moving it on every admitted request as well would mean that
+            a customer sending requests faster than a fraction of a request leaks never sees anything leak.
+         */
+        return bucket;
+    }
+
+    // The time it takes to leak the requests (in fixed point), rounded up to whole time units
+    private long timeToLeak(long requests) {
+        long leakPerTimeUnit = (long) leakRate * LeakyBucket.ONE_REQUEST;
+        return (requests * leakWindow + leakPerTimeUnit - 1) / leakPerTimeUnit;
     }
 }
 
-class LeakyBucket {
-    private final int currentRequestCount;
-    private final int lastUpdatedAt;
+/*
+    A leaky bucket packed into a long: lastUpdatedAt in the high 32 bits, currentRequestCount in the low 32 bits.
+    currentRequestCount is unsigned fixed point with 16 bits for whole requests and 16 bits for the fraction of a request.
+ */
+final class LeakyBucket {
+    static final long ONE_REQUEST = 1L << 16;
+    static final int MAX_REQUESTS = 0xFFFF;
 
-    public LeakyBucket(int currentRequestCount, int lastUpdatedAt) {
-        this.currentRequestCount = currentRequestCount;
-        this.lastUpdatedAt = lastUpdatedAt;
+    private LeakyBucket() {
     }
 
-    public int getCurrentRequestCount() {
-        return currentRequestCount;
+    static long pack(long currentRequestCount, int lastUpdatedAt) {
+        return ((long) lastUpdatedAt << 32) | (currentRequestCount & 0xFFFFFFFFL);
     }
 
-    public int getLastUpdatedAt() {
-        return lastUpdatedAt;
+    static long currentRequestCount(long bucket) {
+        return bucket & 0xFFFFFFFFL;
     }
-}
\ No newline at end of file
+
+    static int lastUpdatedAt(long bucket) {
+        return (int) (bucket >>> 32);
+    }
+}
@@ -0,0 +1,244 @@
+package ratelimiter;
+
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntSupplier;
+
+/*
+    A leaky bucket that shapes traffic instead of only counting it: a request that fits in the bucket is queued rather than run,
+    and the queue drains into the downstream executor at leakRate requests per leakWindow, however bursty the requests came in.
+    Only a request that finds the bucket full (maxQueuedRequests waiting) is turned away, just like LeakyBucketRateLimiter denies it.
+
+    Since requests leave at a fixed rate, how long a request waits is known when it is queued, see expectedDelay(),
+    and how long every released request actually waited is recorded in queueLatency().
+
+    Submitting never takes a lock (see ShapingQueue). The clock gives the current time in leakWindow's time units, tick() releases
+    every request whose turn has come by then and start() calls it in the background. Requests are handed to the executor
+    by the thread calling tick(), so an executor that runs them on the calling thread holds up the ones after them.
+
+    A request the executor rejects keeps its turn and is handed over again on the next tick, ahead of the queue.
+    A request whose hand-over throws anything else (such as an executor that runs it on the calling thread) has had its turn,
+    it is counted in failedRequests() and the requests after it are released as usual.
+ */
+public class LeakyBucketShaper implements Closeable {
+    private final ShapingQueue queue;
+    private final int leakRate;
+    private final int leakWindow;
+    private final IntSupplier clock;
+    private final Executor downstream;
+    private final LatencyHistogram queueLatency;
+    private final ScheduledExecutorService ticker;
+    /*
+        Requests that may leave by now and when that was last worked out. Only tick() writes these.
+        Counted in leakWindow-ths of a request, so each time unit adds exactly leakRate and nothing is lost to rounding between ticks.
+     */
+    private volatile long leakedRequests;
+    private int lastLeakAt;
+    // The request the executor last rejected and when it was queued, only tick() writes these
+    private volatile Runnable rejectedRequest;
+    private int rejectedQueuedAt;
+    private volatile long rejectedRequests;
+    private volatile long failedRequests;
+
+    public LeakyBucketShaper(int maxQueuedRequests, int leakRate, int leakWindow, IntSupplier clock, Executor downstream) {
+        if (maxQueuedRequests <= 0)
+            throw new IllegalArgumentException("maxQueuedRequests must be positive");
+
+        this.queue = new ShapingQueue(maxQueuedRequests);
+        this.leakRate = leakRate;
+        this.leakWindow = leakWindow;
+        this.clock = clock;
+        this.downstream = downstream;
+        this.queueLatency = new LatencyHistogram();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leaky-bucket-shaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // An empty bucket lets the first request through on the next tick
+        this.leakedRequests = leakWindow;
+        this.lastLeakAt = clock.getAsInt();
+    }
+
+    // Queues the request to run once its turn comes, false if the bucket is full and the request is turned away
+    public boolean submit(Runnable request) {
+        return queue.offer(request, clock.getAsInt());
+    }
+
+    public int queuedRequests() {
+        return queue.size() + (rejectedRequest != null ? 1 : 0);
+    }
+
+    // Hand-overs the executor rejected, each of them tried again on the next tick
+    public long rejectedRequests() {
+        return rejectedRequests;
+    }
+
+    // Requests whose hand-over to the executor threw anything but a rejection
+    public long failedRequests() {
+        return failedRequests;
+    }
+
+    // How long a request submitted now would wait before being released, Integer.MAX_VALUE if nothing leaks
+    public int expectedDelay() {
+        if (leakRate <= 0)
+            return Integer.MAX_VALUE;
+
+        // Every request already queued leaves first, one every leakWindow / leakRate, less what has leaked since the last release
+        long requestsAhead = Math.max(0, (queuedRequests() + 1L) * leakWindow - leakedRequests);
+        return (int) Math.min(Integer.MAX_VALUE, (requestsAhead + leakRate - 1) / leakRate);
+    }
+
+    // How long each released request waited in the queue, in the clock's time units
+    public LatencyHistogram queueLatency() {
+        return queueLatency;
+    }
+
+    // Releases every request whose turn has come by now, calls are expected from one thread at a time
+    public synchronized void tick() {
+        int now = clock.getAsInt();
+        leak(now);
+
+        while (leakedRequests >= leakWindow) {
+            Runnable request = rejectedRequest;
+            int queuedAt = rejectedQueuedAt;
+            if (request != null) {
+                rejectedRequest = null;
+            } else {
+                request = queue.poll();
+                if (request == null)
+                    break;
+                queuedAt = queue.polledQueuedAt();
+            }
+
+            try {
+                downstream.execute(request);
+            } catch (RejectedExecutionException e) {
+                // The executor is full or shutting down, the request keeps its turn for the next tick
+                rejectedRequest = request;
+                rejectedQueuedAt = queuedAt;
+                rejectedRequests++;
+                break;
+            } catch (RuntimeException e) {
+                failedRequests++;
+            }
+            leakedRequests -= leakWindow;
+            queueLatency.record((long) now - queuedAt);
+        }
+
+        // An empty queue only saves up the next request's turn, saving up more would let a burst through at once
+        if (queuedRequests() == 0)
+            leakedRequests = Math.min(leakedRequests, leakWindow);
+    }
+
+    public void start(long period, TimeUnit unit) {
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                // An exception would cancel every later tick, the next one tries again instead
+                Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            }
+        }, period, period, unit);
+    }
+
+    // Stops releasing requests, whatever is still queued is never run
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    private void leak(int now) {
+        long elapsedTime = (long) now - lastLeakAt;
+        if (elapsedTime <= 0 || leakRate <= 0)
+            return;
+
+        // Enough to release even a full queue, checked first so that the multiplication below cannot overflow
+        long fullBucket = (queue.capacity() + 1L) * leakWindow;
+        leakedRequests = elapsedTime >= fullBucket ? fullBucket : Math.min(leakedRequests + elapsedTime * leakRate, fullBucket);
+        lastLeakAt = now;
+    }
+}
+
+/*
+    A bounded queue that any number of threads add to and a single thread takes from, without locks.
+    Every slot has a sequence number that says whose turn it is: the adder whose position it equals claims the slot by moving the tail on,
+    fills it and hands it to the taker by moving the sequence one further, and the taker hands it back to the adder
+    one lap later by moving it on by the capacity. An adder that finds a slot still a lap behind knows the queue is full.
+ */
+final class ShapingQueue {
+    private final int capacity;
+    private final AtomicReferenceArray<Runnable> requests;
+    // Written before and read after the slot's sequence, which is what makes them visible to the taker
+    private final int[] queuedAt;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail;
+    // Only the taker writes the head
+    private volatile long head;
+    private int polledQueuedAt;
+
+    ShapingQueue(int capacity) {
+        this.capacity = capacity;
+        this.requests = new AtomicReferenceArray<>(capacity);
+        this.queuedAt = new int[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for (int slot = 0; slot < capacity; slot++)
+            sequences.set(slot, slot);
+        this.tail = new AtomicLong();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    boolean offer(Runnable request, int timestamp) {
+        while (true) {
+            long position = tail.get();
+            int slot = (int) (position % capacity);
+            long sequence = sequences.get(slot);
+
+            if (sequence < position)
+                return false;
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                requests.lazySet(slot, request);
+                queuedAt[slot] = timestamp;
+                sequences.set(slot, position + 1);
+                return true;
+            }
+            // Another adder claimed the slot first, try the next one
+        }
+    }
+
+    // The oldest request, or null if there is none. Only one thread may take at a time
+    Runnable poll() {
+        long position = head;
+        int slot = (int) (position % capacity);
+        // A claimed slot that is not filled yet counts as empty, the request is taken on the next poll
+        if (sequences.get(slot) != position + 1)
+            return null;
+
+        Runnable request = requests.get(slot);
+        polledQueuedAt = queuedAt[slot];
+        requests.lazySet(slot, null);
+        sequences.set(slot, position + capacity);
+        head = position + 1;
+        return request;
+    }
+
+    // When the request that poll() last returned was queued
+    int polledQueuedAt() {
+        return polledQueuedAt;
+    }
+
+    // Can be a claimed but not yet filled request off while adders are busy
+    int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - head));
+    }
+}
@@ -0,0 +1,221 @@
+package ratelimiter;
+
+import java.util.Arrays;
+
+/*
+    A sliding window counter that splits the window into slots instead of looking at just the current and the previous window.
+    A request counts the slots fully inside the window plus the share of the oldest slot that is still inside it, which
+    with more slots gets closer to what SlidingWindowLogRateLimiter decides while only keeping slots + 1 counts per customer.
+    The share is worked out in integers scaled by the slot size, so there is no rounding and no floating point.
+
+    The counts of a customer are a ring (see SlotRings) that the state store maps the customer to. Deciding is one lookup
+    and one pass over the ring under the customer's lock, which moves the ring on to the current slot, counts and adds the request.
+ */
+public class MultiSlotSlidingWindowRateLimiter implements RateLimiter {
+    private final CustomerStateStore customerSlotRings;
+    private final SlotRings slotRings;
+    private final CustomerExpiry customerExpiry;
+    private final CustomerExpiry.IdleCheck idleCheck;
+    private final RateLimiterMetrics metrics;
+    private final int slots;
+    private final int slotSize;
+    private final int maxAllowedRequests;
+
+    public MultiSlotSlidingWindowRateLimiter(int windowSize, int maxAllowedRequests, int slots) {
+        this(windowSize, maxAllowedRequests, slots, new IntStateTable());
+    }
+
+    public MultiSlotSlidingWindowRateLimiter(int windowSize, int maxAllowedRequests, int slots, CustomerStateStore customerSlotRings) {
+        this(windowSize, maxAllowedRequests, slots, customerSlotRings, CustomerExpiry.NONE);
+    }
+
+    public MultiSlotSlidingWindowRateLimiter(int windowSize, int maxAllowedRequests, int slots, CustomerStateStore customerSlotRings, CustomerExpiry customerExpiry) {
+        if (slots <= 0 || windowSize <= 0 || windowSize % slots != 0)
+            throw new IllegalArgumentException("windowSize must be a positive multiple of slots");
+
+        this.slots = slots;
+        this.slotSize = windowSize / slots;
+        this.maxAllowedRequests = maxAllowedRequests;
+        this.customerSlotRings = customerSlotRings;
+        // The store only maps customers to rings, see StateSnapshot
+        if (customerSlotRings instanceof OpenAddressingStateTable)
+            ((OpenAddressingStateTable) customerSlotRings).holdReferences();
+        this.slotRings = new SlotRings(slots + 1);
+        this.customerExpiry = customerExpiry;
+        this.idleCheck = this::expireIfIdle;
+        this.metrics = new RateLimiterMetrics(customerSlotRings::size);
+    }
+
+    @Override
+    public boolean shouldAllowRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide(customerId, timestamp);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    private boolean decide(int customerId, int timestamp) {
+        if (maxAllowedRequests <= 0)
+            return false;
+
+        customerExpiry.advance(timestamp, idleCheck);
+
+        int slot = Math.floorDiv(timestamp, slotSize);
+        boolean newCustomer;
+        boolean allowed;
+        // Reads and writes of a ring happen under the lock of its customer, so a ring is never touched by two requests at once
+        synchronized (slotRings.lockFor(customerId)) {
+            long ring = customerSlotRings.get(customerId);
+            newCustomer = ring == CustomerStateStore.ABSENT;
+            if (newCustomer)
+                ring = allocateRing(customerId);
+
+            allowed = slotRings.offer((int) ring, slot, timestamp - slot * slotSize, slotSize, maxAllowedRequests);
+        }
+
+        // Tracking takes the expiry's lock, which must not be done while holding a customer lock since the expiry takes those the other way round
+        if (newCustomer)
+            customerExpiry.track(customerId, idleAt(slot));
+        return allowed;
+    }
+
+    @Override
+    public void shouldAllowRequests(int[] customerIds, int[] timestamps, boolean[] results) {
+        CustomerBatch.checkLengths(customerIds, timestamps, results);
+        if (maxAllowedRequests <= 0) {
+            Arrays.fill(results, false);
+            metrics.requestsDecided(0, results.length);
+            return;
+        }
+
+        long[] requests = CustomerBatch.sortByCustomer(customerIds);
+        if (timestamps.length > 0)
+            customerExpiry.advance(timestamps[timestamps.length - 1], idleCheck);
+
+        for (int from = 0, to; from < requests.length; from = to) {
+            to = CustomerBatch.endOfCustomer(requests, from);
+            int customerId = CustomerBatch.customerId(requests[from]);
+            int newestSlot;
+            boolean newCustomer;
+
+            // One lock and one ring lookup for all of the customer's requests in the batch
+            synchronized (slotRings.lockFor(customerId)) {
+                long ring = customerSlotRings.get(customerId);
+                newCustomer = ring == CustomerStateStore.ABSENT;
+                if (newCustomer)
+                    ring = allocateRing(customerId);
+
+                for (int request = from; request < to; request++) {
+                    int index = CustomerBatch.index(requests[request]);
+                    int slot = Math.floorDiv(timestamps[index], slotSize);
+                    results[index] = slotRings.offer((int) ring, slot, timestamps[index] - slot * slotSize, slotSize, maxAllowedRequests);
+                }
+                newestSlot = slotRings.newestSlot((int) ring);
+            }
+
+            if (newCustomer)
+                customerExpiry.track(customerId, idleAt(newestSlot));
+        }
+
+        int allowed = 0;
+        for (boolean result : results) {
+            if (result)
+                allowed++;
+        }
+        metrics.requestsDecided(allowed, results.length - allowed);
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+
+    // The caller holds the customer's lock
+    private long allocateRing(int customerId) {
+        long ring = slotRings.allocate();
+        customerSlotRings.compareAndSet(customerId, CustomerStateStore.ABSENT, ring);
+        return ring;
+    }
+
+    // Once the newest slot has left the window and the oldest slot's share as well, nothing is left that could deny a request
+    private int idleAt(int newestSlot) {
+        return (int) Math.min(Integer.MAX_VALUE, ((long) newestSlot + slots + 1) * slotSize);
+    }
+
+    private int expireIfIdle(int customerId, int timestamp) {
+        synchronized (slotRings.lockFor(customerId)) {
+            long ring = customerSlotRings.get(customerId);
+            if (ring == CustomerStateStore.ABSENT)
+                return CustomerExpiry.IdleCheck.NOT_TRACKED;
+
+            int idleAt = idleAt(slotRings.newestSlot((int) ring));
+            if (idleAt > timestamp)
+                return idleAt;
+
+            customerSlotRings.compareAndSet(customerId, ring, CustomerStateStore.ABSENT);
+            slotRings.free((int) ring);
+            metrics.customerExpired();
+            return CustomerExpiry.IdleCheck.NOT_TRACKED;
+        }
+    }
+}
+
+// Rings of request counts per slot (see IntRings), each one laid out as [newest slot, count of slot 0 ... count of slot counts - 1]
+final class SlotRings extends IntRings {
+    private static final int NEWEST_SLOT = 0;
+    private static final int COUNTS = 1;
+
+    private final int counts;
+
+    SlotRings(int counts) {
+        super(counts + COUNTS);
+        this.counts = counts;
+    }
+
+    @Override
+    void reset(int[] chunk, int offset) {
+        for (int i = 0; i < counts + COUNTS; i++)
+            chunk[offset + i] = 0;
+    }
+
+    // The caller holds the ring's lock
+    int newestSlot(int ring) {
+        return chunkOf(ring)[offsetOf(ring) + NEWEST_SLOT];
+    }
+
+    /*
+        Adds a request at elapsedInSlot into slot if the window ending there holds fewer than maxAllowedRequests,
+        counting the slots - 1 slots before it fully and the one before those by the share still inside the window.
+        The caller holds the ring's lock.
+     */
+    boolean offer(int ring, int slot, int elapsedInSlot, int slotSize, int maxAllowedRequests) {
+        int[] chunk = chunkOf(ring);
+        int offset = offsetOf(ring);
+        int newestSlot = chunk[offset + NEWEST_SLOT];
+
+        if (slot > newestSlot) {
+            // Slots between the newest one and this one had no requests, at most a whole ring of them needs clearing
+            long emptySlots = Math.min((long) slot - newestSlot, counts);
+            for (long i = 1; i <= emptySlots; i++)
+                chunk[offset + COUNTS + Math.floorMod(newestSlot + i, counts)] = 0;
+            chunk[offset + NEWEST_SLOT] = slot;
+        } else if (slot < newestSlot) {
+            // A late request counts in the newest slot, as if it had arrived at its start
+            slot = newestSlot;
+            elapsedInSlot = 0;
+        }
+
+        long fullSlotsCount = 0;
+        for (int i = 0; i < counts - 1; i++)
+            fullSlotsCount += chunk[offset + COUNTS + Math.floorMod((long) slot - i, counts)];
+        long oldestSlotCount = chunk[offset + COUNTS + Math.floorMod((long) slot - (counts - 1), counts)];
+
+        // Everything scaled by slotSize, so the oldest slot's share of slotSize - elapsedInSlot stays an integer
+        if (fullSlotsCount * slotSize + oldestSlotCount * (slotSize - elapsedInSlot) >= (long) maxAllowedRequests * slotSize)
+            return false;
+
+        chunk[offset + COUNTS + Math.floorMod(slot, counts)]++;
+        return true;
+    }
+}
@@ -0,0 +1,75 @@
+package ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/*
+    Customer states stored outside the Java heap, in direct ByteBuffers, see OpenAddressingStateTable.
+    The garbage collector only ever sees a couple of buffer objects per segment, however many customers there are,
+    so GC pauses do not grow with the number of customers. Direct memory is capped by -XX:MaxDirectMemorySize.
+
+    Keys and states are accessed through VarHandle views of the buffers, which give the same CAS and volatile access as on arrays.
+ */
+public final class OffHeapStateTable extends OpenAddressingStateTable {
+    public OffHeapStateTable() {
+        this(1024);
+    }
+
+    public OffHeapStateTable(int expectedCustomers) {
+        this(expectedCustomers, Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    public OffHeapStateTable(int expectedCustomers, int concurrencyLevel) {
+        super(expectedCustomers, concurrencyLevel, OffHeapSlots::new);
+    }
+
+    private static final class OffHeapSlots extends Slots {
+        private static final VarHandle KEYS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+        private static final VarHandle STATES = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        private final ByteBuffer keys;
+        private final ByteBuffer states;
+
+        OffHeapSlots(int capacity) {
+            super(capacity);
+            // Atomic access needs aligned addresses, and allocateDirect() only zeroes the memory
+            this.keys = ByteBuffer.allocateDirect(capacity * Integer.BYTES + Long.BYTES).alignedSlice(Long.BYTES);
+            this.states = ByteBuffer.allocateDirect(capacity * Long.BYTES + Long.BYTES).alignedSlice(Long.BYTES);
+            for (int index = 0; index < capacity; index++)
+                STATES.set(states, index * Long.BYTES, ABSENT);
+        }
+
+        @Override
+        int key(int index) {
+            return (int) KEYS.getAcquire(keys, index * Integer.BYTES);
+        }
+
+        @Override
+        int claimKey(int index, int customerId) {
+            return (int) KEYS.compareAndExchange(keys, index * Integer.BYTES, FREE, customerId);
+        }
+
+        @Override
+        long state(int index) {
+            return (long) STATES.getVolatile(states, index * Long.BYTES);
+        }
+
+        @Override
+        boolean compareAndSetState(int index, long expectedState, long newState) {
+            return STATES.compareAndSet(states, index * Long.BYTES, expectedState, newState);
+        }
+
+        @Override
+        long getAndSetState(int index, long newState) {
+            return (long) STATES.getAndSet(states, index * Long.BYTES, newState);
+        }
+
+        @Override
+        void put(int index, int customerId, long state) {
+            KEYS.set(keys, index * Integer.BYTES, customerId);
+            STATES.set(states, index * Long.BYTES, state);
+        }
+    }
+}
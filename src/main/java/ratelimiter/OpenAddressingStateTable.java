@@ -0,0 +1,386 @@
+package ratelimiter;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/*
+    Open addressing hash table from a primitive int customer id to a long of state. Where the slots live is up to the subclass.
+
+    Lookups and compareAndSet() never lock: keys are claimed with a CAS on the key of a slot and states updated with a CAS on its state.
+    A key stays in its slot until the table is resized, removing a customer only sets its state back to ABSENT.
+    The table is split into segments that grow independently, so a resize only copies a small part of the customers.
+    While a segment is being resized its states are swapped to MOVED one by one, which makes every CAS on the old slots fail
+    and sends the caller to the bigger table once it has been published.
+
+    Every slot also has a changed bit, set by each update and taken by forEachChangedState(), so that StateSnapshot can write
+    only the customers that changed. A removed customer whose removal has not been taken yet is kept through a resize for that.
+ */
+public abstract class OpenAddressingStateTable implements CustomerStateStore {
+    private static final VarHandle ZERO_KEY_STATE;
+
+    static {
+        try {
+            ZERO_KEY_STATE = MethodHandles.lookup().findVarHandle(Segment.class, "zeroKeyState", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Marks a state that has been copied into the resized table of its segment
+    static final long MOVED = ABSENT + 1;
+    // Slots start out as zeros, so 0 marks a free slot and customer id 0 is kept outside the slots
+    static final int FREE = 0;
+    static final float LOAD_FACTOR = 0.75f;
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+    // Keeps the states of a segment addressable by an int byte offset, 2^27 longs are 1GB
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 27;
+
+    private final Segment[] segments;
+    private final int segmentShift;
+    private final LongAdder trackedCustomers;
+    private final IntFunction<Slots> slotsFactory;
+    // Set once a rate limiter keeps only references to state held elsewhere in the table, see holdReferences()
+    private volatile boolean holdsReferences;
+
+    OpenAddressingStateTable(int expectedCustomers, int concurrencyLevel, IntFunction<Slots> slotsFactory) {
+        if (expectedCustomers < 0 || concurrencyLevel <= 0)
+            throw new IllegalArgumentException("expectedCustomers must not be negative and concurrencyLevel must be positive");
+
+        int segmentCount = Integer.highestOneBit(Math.min(concurrencyLevel, 1 << 16) * 2 - 1);
+        int segmentCapacity = capacityFor((int) Math.min(Integer.MAX_VALUE, (long) expectedCustomers / segmentCount + 1));
+
+        this.slotsFactory = slotsFactory;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(slotsFactory.apply(segmentCapacity));
+        this.segmentShift = 32 - Integer.numberOfTrailingZeros(segmentCount);
+        this.trackedCustomers = new LongAdder();
+    }
+
+    @Override
+    public long get(int customerId) {
+        int hash = hash(customerId);
+        Segment segment = segmentFor(hash);
+        if (customerId == FREE)
+            return segment.zeroKeyState;
+
+        Slots slots = segment.slots;
+        while (true) {
+            int index = find(slots, customerId, hash);
+            if (index < 0)
+                return ABSENT;
+
+            long state = slots.state(index);
+            if (state != MOVED)
+                return state;
+            slots = awaitResize(segment);
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(int customerId, long expectedState, long newState) {
+        if (newState == MOVED)
+            throw new IllegalArgumentException("State " + MOVED + " is reserved");
+
+        int hash = hash(customerId);
+        Segment segment = segmentFor(hash);
+        if (customerId == FREE) {
+            boolean updated = ZERO_KEY_STATE.compareAndSet(segment, expectedState, newState);
+            if (updated) {
+                if (!segment.zeroKeyChanged)
+                    segment.zeroKeyChanged = true;
+                stateUpdated(expectedState, newState);
+            }
+            return updated;
+        }
+
+        Slots slots = segment.slots;
+        while (true) {
+            int index = expectedState == ABSENT ? findOrClaim(slots, customerId, hash) : find(slots, customerId, hash);
+            if (index < 0) {
+                if (expectedState != ABSENT)
+                    return false;
+                // No free slot left for a new customer
+                slots = resize(segment, slots);
+                continue;
+            }
+
+            if (slots.compareAndSetState(index, expectedState, newState)) {
+                markChanged(segment, slots, index, customerId, hash);
+                stateUpdated(expectedState, newState);
+                return true;
+            }
+            if (slots.state(index) != MOVED)
+                return false;
+            slots = awaitResize(segment);
+        }
+    }
+
+    @Override
+    public long size() {
+        return trackedCustomers.sum();
+    }
+
+    /*
+        Marks the slot as changed after its state was updated. A resize that got to the slot in the meantime may have copied
+        the changed bit before it was set, in which case the bit is set again wherever the customer is now.
+        The state is read after the bit is set and a resize reads the bit after swapping in MOVED, so one of the two always sees the other.
+     */
+    private void markChanged(Segment segment, Slots slots, int index, int customerId, int hash) {
+        slots.markChanged(index);
+        while (slots.state(index) == MOVED) {
+            slots = awaitResize(segment);
+            // A removed customer may not have been copied, it gets a slot back to carry the removal
+            while ((index = findOrClaim(slots, customerId, hash)) < 0)
+                slots = resize(segment, slots);
+            slots.markChanged(index);
+        }
+    }
+
+    private void stateUpdated(long expectedState, long newState) {
+        if (expectedState == ABSENT && newState != ABSENT)
+            trackedCustomers.increment();
+        else if (expectedState != ABSENT && newState == ABSENT)
+            trackedCustomers.decrement();
+    }
+
+    private static int find(Slots slots, int customerId, int hash) {
+        int mask = slots.capacity - 1;
+        int index = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int key = slots.key(index);
+            if (key == customerId)
+                return index;
+            if (key == FREE)
+                return -1;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int findOrClaim(Slots slots, int customerId, int hash) {
+        int mask = slots.capacity - 1;
+        int index = hash & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int key = slots.key(index);
+            if (key == FREE) {
+                if (slots.usedSlots.get() >= slots.resizeThreshold)
+                    return -1;
+                // Slots are only ever claimed, never freed, so two threads adding the same customer end up on the same slot
+                key = slots.claimKey(index, customerId);
+                if (key == FREE) {
+                    slots.usedSlots.incrementAndGet();
+                    return index;
+                }
+            }
+            if (key == customerId)
+                return index;
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    private Slots resize(Segment segment, Slots slots) {
+        synchronized (segment) {
+            if (segment.slots != slots)
+                return segment.slots;
+
+            int liveCustomers = 0;
+            for (int i = 0; i < slots.capacity; i++) {
+                if (slots.state(i) != ABSENT || slots.isChanged(i))
+                    liveCustomers++;
+            }
+            // Removed customers still hold a slot, so the table only has to grow if most slots are really in use
+            int capacity = liveCustomers + 1 >= slots.resizeThreshold / 2 ? slots.capacity * 2 : slots.capacity;
+            if (capacity > MAX_SEGMENT_CAPACITY)
+                throw new IllegalStateException("Segment is full, create the table with a higher concurrencyLevel");
+            Slots resized = slotsFactory.apply(capacity);
+            int mask = capacity - 1;
+
+            for (int i = 0; i < slots.capacity; i++) {
+                long state = slots.getAndSetState(i, MOVED);
+                // Read after MOVED is in, see markChanged()
+                boolean changed = slots.isChanged(i);
+                if (state == ABSENT && !changed)
+                    continue;
+
+                int key = slots.key(i);
+                int index = hash(key) & mask;
+                while (resized.key(index) != FREE)
+                    index = (index + 1) & mask;
+                resized.put(index, key, state);
+                if (changed)
+                    resized.markChanged(index);
+                resized.usedSlots.incrementAndGet();
+            }
+
+            // The volatile write publishes the copied slots to every thread that reads segment.slots afterwards
+            segment.slots = resized;
+            return resized;
+        }
+    }
+
+    // A resize holds the segment lock from before the first MOVED until the new slots are published
+    private static Slots awaitResize(Segment segment) {
+        synchronized (segment) {
+            return segment.slots;
+        }
+    }
+
+    /*
+        Called by a rate limiter whose states are only references to data it keeps outside the table (ring ids, say).
+        Such states mean nothing without that data, so StateSnapshot refuses to write or restore them.
+     */
+    void holdReferences() {
+        holdsReferences = true;
+    }
+
+    boolean holdsReferences() {
+        return holdsReferences;
+    }
+
+    int segmentCount() {
+        return segments.length;
+    }
+
+    /*
+        Calls the consumer with every customer of the segment whose state changed since the last call, ABSENT for a removed one,
+        and resets their changed bits. A bit is cleared before its state is read, so a change racing with the read is reported again next time.
+     */
+    void forEachChangedState(int segmentIndex, StateConsumer consumer) {
+        Segment segment = segments[segmentIndex];
+        if (segment.zeroKeyChanged) {
+            segment.zeroKeyChanged = false;
+            consumer.accept(FREE, segment.zeroKeyState);
+        }
+
+        Slots slots = segment.slots;
+        for (int word = 0; word < slots.changed.length; word++) {
+            long changed = slots.takeChanged(word);
+            for (; changed != 0; changed &= changed - 1) {
+                int index = word * Long.SIZE + Long.numberOfTrailingZeros(changed);
+                int customerId = slots.key(index);
+                long state = slots.state(index);
+                // Copied by a resize, which may or may not have taken the changed bit along, so the state is read from the new slots
+                consumer.accept(customerId, state == MOVED ? get(customerId) : state);
+            }
+        }
+    }
+
+    // Forgets which customers of the segment changed, for a caller that is about to read all of them anyway
+    void clearChanged(int segmentIndex) {
+        forEachChangedState(segmentIndex, (customerId, state) -> {
+        });
+    }
+
+    // Calls the consumer with every tracked customer of the segment
+    void forEachState(int segmentIndex, StateConsumer consumer) {
+        Segment segment = segments[segmentIndex];
+        long zeroKeyState = segment.zeroKeyState;
+        if (zeroKeyState != ABSENT)
+            consumer.accept(FREE, zeroKeyState);
+
+        Slots slots = segment.slots;
+        for (int index = 0; index < slots.capacity; index++) {
+            long state = slots.state(index);
+            if (state == MOVED) {
+                // Being resized, everything still to be read is in the new slots
+                slots = awaitResize(segment);
+                index = -1;
+                continue;
+            }
+            if (state != ABSENT)
+                consumer.accept(slots.key(index), state);
+        }
+    }
+
+    interface StateConsumer {
+        void accept(int customerId, long state);
+    }
+
+    private Segment segmentFor(int hash) {
+        // The high bits pick the segment and the low bits the slot, the long shift keeps a single segment working
+        return segments[(int) ((hash & 0xFFFFFFFFL) >>> segmentShift)];
+    }
+
+    // Murmur3 finalizer, consecutive customer ids would otherwise fill consecutive slots and make probing long
+    private static int hash(int customerId) {
+        int hash = customerId;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    private static int capacityFor(int customers) {
+        int capacity = MIN_SEGMENT_CAPACITY;
+        while (capacity * LOAD_FACTOR < customers && capacity < MAX_SEGMENT_CAPACITY)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private static final class Segment {
+        volatile Slots slots;
+        volatile long zeroKeyState = ABSENT;
+        volatile boolean zeroKeyChanged;
+
+        Segment(Slots slots) {
+            this.slots = slots;
+        }
+    }
+
+    /*
+        The slots of one segment: capacity pairs of an int key and a long state, keys start out FREE and states ABSENT.
+        Keys are read with acquire semantics and claimed with a CAS, states are read and written as volatiles.
+     */
+    abstract static class Slots {
+        private static final VarHandle CHANGED = MethodHandles.arrayElementVarHandle(long[].class);
+
+        final int capacity;
+        final int resizeThreshold;
+        final AtomicInteger usedSlots;
+        // One changed bit per slot, kept on the heap whatever the subclass does with the slots
+        final long[] changed;
+
+        Slots(int capacity) {
+            this.capacity = capacity;
+            this.resizeThreshold = (int) (capacity * LOAD_FACTOR);
+            this.usedSlots = new AtomicInteger();
+            this.changed = new long[(capacity + Long.SIZE - 1) / Long.SIZE];
+        }
+
+        final void markChanged(int index) {
+            long bit = 1L << index;
+            // Read before written so that a customer that is already marked costs no write to a shared cache line
+            if (((long) CHANGED.getVolatile(changed, index / Long.SIZE) & bit) == 0)
+                CHANGED.getAndBitwiseOr(changed, index / Long.SIZE, bit);
+        }
+
+        final boolean isChanged(int index) {
+            return ((long) CHANGED.getVolatile(changed, index / Long.SIZE) & 1L << index) != 0;
+        }
+
+        final long takeChanged(int word) {
+            return (long) CHANGED.getVolatile(changed, word) == 0 ? 0 : (long) CHANGED.getAndSet(changed, word, 0L);
+        }
+
+        abstract int key(int index);
+
+        // Sets the key if the slot is FREE, returns the key the slot had before
+        abstract int claimKey(int index, int customerId);
+
+        abstract long state(int index);
+
+        abstract boolean compareAndSetState(int index, long expectedState, long newState);
+
+        abstract long getAndSetState(int index, long newState);
+
+        // Plain writes for filling slots that no other thread can see yet
+        abstract void put(int index, int customerId, long state);
+    }
+}
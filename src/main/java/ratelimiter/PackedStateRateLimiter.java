@@ -0,0 +1,313 @@
+package ratelimiter;
+
+/*
+    Base of the rate limiters whose per-customer state fits in a single long of a CustomerStateStore.
+    A subclass only says how a request changes that state in admit(); reading the state, deciding and writing it back
+    is one compareAndSet() here, retried if another request for the same customer got in first.
+    With idleAt() it also says when a state is back to the default, which is all the CustomerExpiry needs to drop idle customers.
+ */
+abstract class PackedStateRateLimiter implements RateLimiter {
+    // Returned by admit() when the request is denied, ABSENT can never be a state so it cannot be mistaken for one
+    static final long DENIED = CustomerStateStore.ABSENT;
+
+    final CustomerStateStore customerStates;
+    private final CustomerExpiry customerExpiry;
+    private final CustomerExpiry.IdleCheck idleCheck;
+    private final RateLimiterMetrics metrics;
+
+    PackedStateRateLimiter(CustomerStateStore customerStates, CustomerExpiry customerExpiry) {
+        this.customerStates = customerStates;
+        this.customerExpiry = customerExpiry;
+        this.idleCheck = this::expireIfIdle;
+        this.metrics = new RateLimiterMetrics(customerStates::size);
+    }
+
+    /*
+        The customer's state after admitting a request at timestamp, or DENIED.
+        state is ABSENT for a customer that is not tracked yet. Must not have side effects, it is called again on every retry.
+     */
+    abstract long admit(long state, int timestamp);
+
+    /*
+        The time from which a customer in this state, if it sends no more requests, is treated exactly like a new customer.
+        From then on it can be dropped without changing any decision.
+     */
+    abstract int idleAt(long state);
+
+    /*
+        The state with a request that admit() let through at timestamp given back, which undoes a request that was turned down later on.
+        A state that has moved on past the window of that request has nothing left to give back, and is returned as it is.
+     */
+    abstract long release(long state, int timestamp);
+
+    // How many more requests admit() lets through at timestamp after this state, which it has just admitted a request at timestamp into
+    abstract int remainingPermits(long state, int timestamp);
+
+    @Override
+    public boolean shouldAllowRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide(customerId, timestamp);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    // Decides without counting the decision in the metrics
+    boolean decide(int customerId, int timestamp) {
+        customerExpiry.advance(timestamp, idleCheck);
+
+        while (true) {
+            long state = customerStates.get(customerId);
+            long admitted = admit(state, timestamp);
+
+            if (admitted == DENIED) {
+                return false;
+            }
+
+            if (customerStates.compareAndSet(customerId, state, admitted)) {
+                if (state == CustomerStateStore.ABSENT)
+                    customerExpiry.track(customerId, idleAt(admitted));
+                return true;
+            }
+            metrics.updateContended();
+        }
+    }
+
+    @Override
+    public long decideRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        long decision = decideWithQuota(customerId, timestamp);
+        metrics.requestDecided(RateLimitDecision.isAllowed(decision));
+        metrics.stopTiming(startedAt);
+        return decision;
+    }
+
+    // Like decide(), working the rest of the decision out from the state that was read or written
+    long decideWithQuota(int customerId, int timestamp) {
+        customerExpiry.advance(timestamp, idleCheck);
+
+        while (true) {
+            long state = customerStates.get(customerId);
+            long admitted = admit(state, timestamp);
+
+            if (admitted == DENIED) {
+                // See nextPermitAt()
+                int permitAt = state == CustomerStateStore.ABSENT ? Integer.MAX_VALUE : permitAvailableAt(state, timestamp);
+                return RateLimitDecision.pack(false, 0, retryAfter(permitAt, timestamp));
+            }
+
+            if (customerStates.compareAndSet(customerId, state, admitted)) {
+                if (state == CustomerStateStore.ABSENT)
+                    customerExpiry.track(customerId, idleAt(admitted));
+
+                int remaining = remainingPermits(admitted, timestamp);
+                return RateLimitDecision.pack(true, remaining, remaining > 0 ? 0 : retryAfter(permitAvailableAt(admitted, timestamp), timestamp));
+            }
+            metrics.updateContended();
+        }
+    }
+
+    private static int retryAfter(int permitAt, int timestamp) {
+        return permitAt == Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, Math.max(0, (long) permitAt - timestamp));
+    }
+
+    @Override
+    public void shouldAllowRequests(int[] customerIds, int[] timestamps, boolean[] results) {
+        CustomerBatch.checkLengths(customerIds, timestamps, results);
+        long[] requests = CustomerBatch.sortByCustomer(customerIds);
+        if (timestamps.length > 0)
+            customerExpiry.advance(timestamps[timestamps.length - 1], idleCheck);
+
+        for (int from = 0, to; from < requests.length; from = to) {
+            to = CustomerBatch.endOfCustomer(requests, from);
+            int customerId = CustomerBatch.customerId(requests[from]);
+
+            // All requests of the customer are applied to a local copy of its state, which is written back once
+            while (true) {
+                long initialState = customerStates.get(customerId);
+                long state = initialState;
+
+                for (int request = from; request < to; request++) {
+                    int index = CustomerBatch.index(requests[request]);
+                    long admitted = admit(state, timestamps[index]);
+                    results[index] = admitted != DENIED;
+                    if (admitted != DENIED)
+                        state = admitted;
+                }
+
+                if (state == initialState) {
+                    break;
+                }
+                if (customerStates.compareAndSet(customerId, initialState, state)) {
+                    if (initialState == CustomerStateStore.ABSENT)
+                        customerExpiry.track(customerId, idleAt(state));
+                    break;
+                }
+                metrics.updateContended();
+            }
+        }
+
+        int allowed = 0;
+        for (boolean result : results) {
+            if (result)
+                allowed++;
+        }
+        metrics.requestsDecided(allowed, results.length - allowed);
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+
+    // Whether a request at timestamp would be admitted, without changing anything
+    boolean wouldAdmit(int customerId, int timestamp) {
+        return admit(customerStates.get(customerId), timestamp) != DENIED;
+    }
+
+    // Undoes a request admitted at timestamp, see release()
+    void giveBack(int customerId, int timestamp) {
+        while (true) {
+            long state = customerStates.get(customerId);
+            // Expired in the meantime, so the request no longer counts anyway
+            if (state == CustomerStateStore.ABSENT)
+                return;
+
+            long released = release(state, timestamp);
+            if (released == state || customerStates.compareAndSet(customerId, state, released))
+                return;
+            metrics.updateContended();
+        }
+    }
+
+    /*
+        Admits up to permits requests of the customer at timestamp with a single compareAndSet(), as if they arrived one after another.
+        Returns how many were admitted (see acquiredPermits()) and how many compareAndSet() calls lost to another request (see lostRaces()),
+        the latter being what tells a customer that many threads are sending requests for at once.
+     */
+    long acquire(int customerId, int timestamp, int permits) {
+        customerExpiry.advance(timestamp, idleCheck);
+
+        for (int lostRaces = 0; ; lostRaces++) {
+            long initialState = customerStates.get(customerId);
+            long state = initialState;
+            int acquired = 0;
+            while (acquired < permits) {
+                long admitted = admit(state, timestamp);
+                if (admitted == DENIED)
+                    break;
+                state = admitted;
+                acquired++;
+            }
+
+            if (acquired == 0)
+                return (long) lostRaces << 32;
+            if (customerStates.compareAndSet(customerId, initialState, state)) {
+                if (initialState == CustomerStateStore.ABSENT)
+                    customerExpiry.track(customerId, idleAt(state));
+                return (long) lostRaces << 32 | acquired;
+            }
+            metrics.updateContended();
+        }
+    }
+
+    static int acquiredPermits(long acquired) {
+        return (int) acquired;
+    }
+
+    static int lostRaces(long acquired) {
+        return (int) (acquired >>> 32);
+    }
+
+    // The earliest time from timestamp on at which a request of the customer would be admitted, Integer.MAX_VALUE if never
+    int nextPermitAt(int customerId, int timestamp) {
+        long state = customerStates.get(customerId);
+        if (admit(state, timestamp) != DENIED)
+            return timestamp;
+        // A new customer starts with the most a customer can get, if that is denied nothing will ever be admitted
+        if (state == CustomerStateStore.ABSENT)
+            return Integer.MAX_VALUE;
+        return permitAvailableAt(state, timestamp);
+    }
+
+    /*
+        A decision a rate limiter built on this one took at timestamp, packed with the remaining requests and the retry time
+        of the customer's state as it is now. Requests decided since can have moved those on a little, never the decision itself.
+     */
+    long withQuota(int customerId, int timestamp, boolean allowed) {
+        long state = customerStates.get(customerId);
+        long admitted = admit(state, timestamp);
+        if (admitted == DENIED) {
+            // See nextPermitAt()
+            int permitAt = state == CustomerStateStore.ABSENT ? Integer.MAX_VALUE : permitAvailableAt(state, timestamp);
+            return RateLimitDecision.pack(allowed, 0, retryAfter(permitAt, timestamp));
+        }
+        return RateLimitDecision.pack(allowed, (int) Math.min(Integer.MAX_VALUE, 1L + remainingPermits(admitted, timestamp)), 0);
+    }
+
+    /*
+        The earliest time after timestamp at which admit() allows a request in this state, which it denies at timestamp.
+        Subclasses whose state says when the next permit comes should answer directly. This searches the time up to idleAt(),
+        by when the state is as good as new, assuming that a state that allows a request keeps doing so as time goes on.
+     */
+    int permitAvailableAt(long state, int timestamp) {
+        long earliest = timestamp + 1L;
+        long latest = Math.max(idleAt(state), earliest);
+        if (latest > Integer.MAX_VALUE || admit(state, (int) latest) == DENIED)
+            return Integer.MAX_VALUE;
+
+        while (earliest < latest) {
+            long middle = (earliest + latest) >>> 1;
+            if (admit(state, (int) middle) != DENIED)
+                latest = middle;
+            else
+                earliest = middle + 1;
+        }
+        return (int) earliest;
+    }
+
+    // Tells the expiry about a customer a subclass has put in the store itself, outside of admit()
+    void startTracking(int customerId, long state) {
+        customerExpiry.track(customerId, idleAt(state));
+    }
+
+    /*
+        Puts back a state saved by StateSnapshot, ABSENT for a customer that was removed, and returns the state it replaced.
+        A customer that starts being tracked is told to the expiry like one admit() started, so it is dropped once idle.
+     */
+    long restoreState(int customerId, long state) {
+        while (true) {
+            long current = customerStates.get(customerId);
+            if (current == state)
+                return current;
+            if (customerStates.compareAndSet(customerId, current, state)) {
+                if (current == CustomerStateStore.ABSENT)
+                    startTracking(customerId, state);
+                return current;
+            }
+        }
+    }
+
+    private int expireIfIdle(int customerId, int timestamp) {
+        while (true) {
+            long state = customerStates.get(customerId);
+            if (state == CustomerStateStore.ABSENT)
+                return CustomerExpiry.IdleCheck.NOT_TRACKED;
+
+            int idleAt = idleAt(state);
+            if (idleAt > timestamp)
+                return idleAt;
+
+            // Fails if a request changed the state in the meantime, in which case the new state is checked again
+            if (customerStates.compareAndSet(customerId, state, CustomerStateStore.ABSENT)) {
+                metrics.customerExpired();
+                return CustomerExpiry.IdleCheck.NOT_TRACKED;
+            }
+        }
+    }
+
+    // Adds a duration to a time without wrapping around, a customer that would be idle after the end of time is just never idle
+    static int timeAfter(int time, long duration) {
+        return (int) Math.min(Integer.MAX_VALUE, time + duration);
+    }
+}
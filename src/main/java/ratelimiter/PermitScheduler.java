@@ -0,0 +1,195 @@
+package ratelimiter;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/*
+    Lets callers wait for a permit instead of retrying shouldAllowRequest(). A request that is denied waits in its customer's queue,
+    and the customer is put on a timing wheel at the exact time the rate limiter's state says the next permit comes.
+    When the wheel reaches it the waiters are admitted in the order they arrived, and the customer goes back on the wheel
+    for the next permit if any are left waiting. A request for a customer that already has waiters queues behind them.
+
+    The clock gives the current time in the rate limiter's time units. tick() catches up with it, start() calls tick() in the background.
+    Futures are completed by the thread calling tick(), so a caller with anything expensive to do should continue with an async stage.
+
+    Each customer's queue is only ever changed inside a compute() of the map holding it, which locks that customer's bin
+    rather than every customer, so requests for different customers queue up without waiting for each other.
+    A waiter's permit is taken from the rate limiter before its future is completed, so a waiter that gives up in between
+    (a cancelled future, an interrupted acquire()) finds its permit already taken. That permit goes back to the rate limiter
+    and on to the next waiter right away.
+ */
+public class PermitScheduler implements Closeable {
+    private final PackedStateRateLimiter rateLimiter;
+    private final IntSupplier clock;
+    // Not used as an expiry: a customer stays on the wheel for as long as releaseWaiters() says it has waiters left
+    private final TimingWheelExpiry timer;
+    private final CustomerExpiry.IdleCheck waiterRelease;
+    private final ConcurrentHashMap<Integer, ArrayDeque<CompletableFuture<Void>>> waiters;
+    // Only used while holding the scheduler's lock, see advance()
+    private final List<Admission> admitted;
+    private final ScheduledExecutorService ticker;
+
+    public PermitScheduler(RateLimiter rateLimiter, IntSupplier clock) {
+        if (!(rateLimiter instanceof PackedStateRateLimiter))
+            throw new IllegalArgumentException("Only rate limiters keeping each customer's state in a CustomerStateStore can tell when the next permit comes");
+
+        this.rateLimiter = (PackedStateRateLimiter) rateLimiter;
+        this.clock = clock;
+        this.timer = new TimingWheelExpiry(1);
+        this.waiterRelease = this::releaseWaiters;
+        this.waiters = new ConcurrentHashMap<>();
+        this.admitted = new ArrayList<>();
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "permit-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Starts the wheel at the current time, otherwise it would start at whatever permit time is put on it first
+        advance(clock.getAsInt());
+    }
+
+    // Completes once a request of the customer has been admitted, right away if it can be
+    public CompletableFuture<Void> acquireAsync(int customerId) {
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        int now = clock.getAsInt();
+        int[] permitAt = {CustomerExpiry.IdleCheck.NOT_TRACKED};
+
+        waiters.compute(customerId, (id, queue) -> {
+            if (queue != null) {
+                queue.add(permit);
+                return queue;
+            }
+            if (rateLimiter.shouldAllowRequest(id, now)) {
+                permit.complete(null);
+                return null;
+            }
+
+            queue = new ArrayDeque<>();
+            queue.add(permit);
+            permitAt[0] = rateLimiter.nextPermitAt(id, now);
+            return queue;
+        });
+
+        if (permitAt[0] != CustomerExpiry.IdleCheck.NOT_TRACKED) {
+            // The wheel places the customer relative to the time it has got to, which has to be now for an earlier permit to come first
+            advance(now);
+            // The timer calls releaseWaiters() holding its own lock, so it must not be called from inside compute()
+            timer.track(customerId, permitAt[0]);
+        }
+        return permit;
+    }
+
+    /*
+        Blocks until a request of the customer has been admitted. An interrupted caller gives up its place in the queue,
+        unless its permit has already come, in which case it keeps it and returns with its interrupt status set.
+     */
+    public void acquire(int customerId) throws InterruptedException {
+        CompletableFuture<Void> permit = acquireAsync(customerId);
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            if (permit.cancel(false))
+                throw e;
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Admits every waiter whose permit has come by now
+    public void tick() {
+        advance(clock.getAsInt());
+    }
+
+    public void start(long period, TimeUnit unit) {
+        ticker.scheduleAtFixedRate(this::tick, period, period, unit);
+    }
+
+    // Stops ticking and cancels everything still waiting
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+
+        List<CompletableFuture<Void>> cancelled = new ArrayList<>();
+        for (Integer customerId : waiters.keySet()) {
+            ArrayDeque<CompletableFuture<Void>> queue = waiters.remove(customerId);
+            if (queue != null)
+                cancelled.addAll(queue);
+        }
+        for (CompletableFuture<Void> permit : cancelled)
+            permit.cancel(false);
+    }
+
+    // Admits every waiter whose permit has come by timestamp. Futures are completed outside the lock, so their stages can queue again
+    private void advance(int timestamp) {
+        List<Admission> givenBack = List.of();
+        while (true) {
+            List<Admission> released;
+            synchronized (this) {
+                timer.advance(timestamp, waiterRelease);
+                // The next waiter gets a permit that was given back now, rather than when its customer comes round on the wheel again
+                for (Admission admission : givenBack)
+                    releaseWaiters(admission.customerId, admission.timestamp);
+                if (admitted.isEmpty())
+                    return;
+                released = new ArrayList<>(admitted);
+                admitted.clear();
+            }
+
+            givenBack = new ArrayList<>();
+            for (Admission admission : released) {
+                // Fails for a waiter that gave up after its permit was taken
+                if (!admission.permit.complete(null)) {
+                    rateLimiter.giveBack(admission.customerId, admission.timestamp);
+                    givenBack.add(admission);
+                }
+            }
+            if (givenBack.isEmpty())
+                return;
+        }
+    }
+
+    private int releaseWaiters(int customerId, int timestamp) {
+        int[] nextPermitAt = {CustomerExpiry.IdleCheck.NOT_TRACKED};
+
+        waiters.computeIfPresent(customerId, (id, queue) -> {
+            while (!queue.isEmpty()) {
+                // Cancelled waiters do not take a permit
+                if (queue.peek().isDone()) {
+                    queue.poll();
+                    continue;
+                }
+                if (!rateLimiter.shouldAllowRequest(id, timestamp)) {
+                    nextPermitAt[0] = rateLimiter.nextPermitAt(id, timestamp);
+                    return queue;
+                }
+                // Completed only after the timer has let go of its lock, see advance()
+                admitted.add(new Admission(id, timestamp, queue.poll()));
+            }
+            return null;
+        });
+        return nextPermitAt[0];
+    }
+
+    // A waiter whose permit has been taken from the rate limiter at timestamp
+    private static final class Admission {
+        final int customerId;
+        final int timestamp;
+        final CompletableFuture<Void> permit;
+
+        Admission(int customerId, int timestamp, CompletableFuture<Void> permit) {
+            this.customerId = customerId;
+            this.timestamp = timestamp;
+            this.permit = permit;
+        }
+    }
+}
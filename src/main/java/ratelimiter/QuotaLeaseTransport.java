@@ -0,0 +1,10 @@
+package ratelimiter;
+
+/*
+    How a node of a DistributedRateLimiter reaches the coordinator that holds every customer's global quota.
+    A lease is permits taken out of the global quota, which the node then hands out to its own requests without asking again.
+ */
+public interface QuotaLeaseTransport {
+    // Takes up to permits of the customer's global quota at timestamp, returns how many were granted, 0 if the quota is used up
+    int leasePermits(int customerId, int timestamp, int permits);
+}
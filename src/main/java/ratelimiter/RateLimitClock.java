@@ -0,0 +1,8 @@
+package ratelimiter;
+
+// Where the time of a request comes from, in nanoseconds from an arbitrary origin like System.nanoTime()
+public interface RateLimitClock {
+    RateLimitClock SYSTEM = System::nanoTime;
+
+    long nanoTime();
+}
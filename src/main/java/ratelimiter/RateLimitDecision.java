@@ -0,0 +1,73 @@
+package ratelimiter;
+
+/*
+    A decision together with what a caller needs for X-RateLimit-Remaining and Retry-After headers, see RateLimiter.decideRequest().
+    It comes packed into a long, allowed in the top bit, retryAfter in the next 31 and remaining in the low 32,
+    which isAllowed(), retryAfterOf() and remainingOf() read back. An instance is a holder that decideRequest() can write
+    the same into instead, meant to be reused by the caller from one request to the next.
+
+    remaining is how many more requests of the customer would be allowed right after this one, retryAfter how long
+    until the next one would be, in the rate limiter's time units: 0 while there are requests remaining,
+    Integer.MAX_VALUE if no request will ever be allowed again. A rate limiter that only knows whether the request is allowed
+    says so with both set to UNKNOWN (all ones in the low 32 bits, which no remaining count has), and the caller then leaves
+    the headers out rather than guess.
+ */
+public final class RateLimitDecision {
+    public static final int UNKNOWN = -1;
+    private static final long ALLOWED = 1L << 63;
+
+    private boolean allowed;
+    private int remaining;
+    private int retryAfter;
+
+    static long pack(boolean allowed, int remaining, int retryAfter) {
+        return (allowed ? ALLOWED : 0) | ((long) Math.max(0, retryAfter) << 32) | Math.max(0, remaining);
+    }
+
+    static long unknownQuota(boolean allowed) {
+        return (allowed ? ALLOWED : 0) | 0xFFFFFFFFL;
+    }
+
+    /*
+        The decision with the fewer remaining requests and the longer wait of the two, for a rate limiter that only allows
+        a request if several rate limiters do. Unknown if either of them is.
+     */
+    static long stricter(long decision, long other) {
+        boolean allowed = isAllowed(decision) && isAllowed(other);
+        if (remainingOf(decision) == UNKNOWN || remainingOf(other) == UNKNOWN)
+            return unknownQuota(allowed);
+        return pack(allowed, Math.min(remainingOf(decision), remainingOf(other)), Math.max(retryAfterOf(decision), retryAfterOf(other)));
+    }
+
+    public static boolean isAllowed(long decision) {
+        return (decision & ALLOWED) != 0;
+    }
+
+    public static int remainingOf(long decision) {
+        return (int) decision;
+    }
+
+    public static int retryAfterOf(long decision) {
+        if (remainingOf(decision) == UNKNOWN)
+            return UNKNOWN;
+        return (int) (decision >>> 32) & Integer.MAX_VALUE;
+    }
+
+    public boolean isAllowed() {
+        return allowed;
+    }
+
+    public int remaining() {
+        return remaining;
+    }
+
+    public int retryAfter() {
+        return retryAfter;
+    }
+
+    void set(long decision) {
+        this.allowed = isAllowed(decision);
+        this.remaining = remainingOf(decision);
+        this.retryAfter = retryAfterOf(decision);
+    }
+}
@@ -1,5 +1,59 @@
 package ratelimiter;
 
+import java.nio.ByteBuffer;
+
 public interface RateLimiter {
     boolean shouldAllowRequest(int customerId, int timestamp);
+
+    /*
+        Keys that are not ints are hashed to a customer id without allocating, see CustomerKeys. Different keys can get the same id
+        and so share a limit; where they must not, pass the id CustomerKeyTable gives the key instead.
+     */
+    default boolean shouldAllowRequest(long key, int timestamp) {
+        return shouldAllowRequest(CustomerKeys.of(key), timestamp);
+    }
+
+    default boolean shouldAllowRequest(CharSequence key, int timestamp) {
+        return shouldAllowRequest(CustomerKeys.of(key), timestamp);
+    }
+
+    default boolean shouldAllowRequest(byte[] key, int offset, int length, int timestamp) {
+        return shouldAllowRequest(CustomerKeys.of(key, offset, length), timestamp);
+    }
+
+    default boolean shouldAllowRequest(ByteBuffer key, int offset, int length, int timestamp) {
+        return shouldAllowRequest(CustomerKeys.of(key, offset, length), timestamp);
+    }
+
+    /*
+        Decides like shouldAllowRequest() and says how many requests remain and how long until the next one is allowed,
+        packed into a long (see RateLimitDecision). Rate limiters that keep a customer's state work both out from the state
+        the decision was taken on, with no second lookup, and those built on them pass what their rate limiters say on.
+        Others only know the decision, and report both as RateLimitDecision.UNKNOWN.
+     */
+    default long decideRequest(int customerId, int timestamp) {
+        return RateLimitDecision.unknownQuota(shouldAllowRequest(customerId, timestamp));
+    }
+
+    // Writes the decision into a holder the caller reuses, instead of returning it packed
+    default void decideRequest(int customerId, int timestamp, RateLimitDecision decision) {
+        decision.set(decideRequest(customerId, timestamp));
+    }
+
+    // Counters and latencies of the decisions taken so far, see RateLimiterMetrics. All zeros for a rate limiter that does not keep them
+    default RateLimiterMetrics metrics() {
+        return RateLimiterMetrics.DISABLED;
+    }
+
+    /*
+        Decides a whole batch of requests, results[i] is the decision for customerIds[i] at timestamps[i].
+        Requests of the same customer are decided in the order they appear in the batch.
+        Implementations group the batch by customer so each customer's state is read and written once per batch instead of once per request.
+     */
+    default void shouldAllowRequests(int[] customerIds, int[] timestamps, boolean[] results) {
+        CustomerBatch.checkLengths(customerIds, timestamps, results);
+
+        for (int i = 0; i < customerIds.length; i++)
+            results[i] = shouldAllowRequest(customerIds[i], timestamps[i]);
+    }
 }
@@ -0,0 +1,89 @@
+package ratelimiter;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+    What a rate limiter has been doing, read whenever the caller likes (for example when metrics are scraped).
+    Counters are LongAdders, which spread concurrent increments over cells instead of all threads writing one cache line.
+    Deciding a request takes about as long as reading the clock, so only one request in LATENCY_SAMPLING is timed.
+
+    Denials with few contendedUpdates are real overload, many contendedUpdates mean many threads fighting over the same customers.
+ */
+public final class RateLimiterMetrics {
+    static final int LATENCY_SAMPLING = 64;
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+    // What a rate limiter that keeps no metrics returns, every counter stays at zero since only a rate limiter records on its own metrics
+    static final RateLimiterMetrics DISABLED = new RateLimiterMetrics(() -> 0);
+
+    private final LongAdder allowedRequests;
+    private final LongAdder deniedRequests;
+    private final LongAdder contendedUpdates;
+    private final LongAdder expiredCustomers;
+    private final LatencyHistogram decisionLatency;
+    private final LongSupplier trackedCustomers;
+
+    RateLimiterMetrics(LongSupplier trackedCustomers) {
+        this.allowedRequests = new LongAdder();
+        this.deniedRequests = new LongAdder();
+        this.contendedUpdates = new LongAdder();
+        this.expiredCustomers = new LongAdder();
+        this.decisionLatency = new LatencyHistogram();
+        this.trackedCustomers = trackedCustomers;
+    }
+
+    public long allowedRequests() {
+        return allowedRequests.sum();
+    }
+
+    public long deniedRequests() {
+        return deniedRequests.sum();
+    }
+
+    // Updates of a customer's state that had to be retried because another request for the same customer got in first
+    public long contendedUpdates() {
+        return contendedUpdates.sum();
+    }
+
+    // Customers dropped by the CustomerExpiry since they were idle
+    public long expiredCustomers() {
+        return expiredCustomers.sum();
+    }
+
+    public long trackedCustomers() {
+        return trackedCustomers.getAsLong();
+    }
+
+    // Time taken by sampled shouldAllowRequest() calls, in nanoseconds
+    public LatencyHistogram decisionLatency() {
+        return decisionLatency;
+    }
+
+    void requestDecided(boolean allowed) {
+        (allowed ? allowedRequests : deniedRequests).increment();
+    }
+
+    void requestsDecided(int allowed, int denied) {
+        allowedRequests.add(allowed);
+        deniedRequests.add(denied);
+    }
+
+    void updateContended() {
+        contendedUpdates.increment();
+    }
+
+    void customerExpired() {
+        expiredCustomers.increment();
+    }
+
+    // Returns what has to be handed to stopTiming(), the current time for a sampled request
+    long startTiming() {
+        return ThreadLocalRandom.current().nextInt(LATENCY_SAMPLING) == 0 ? System.nanoTime() : NOT_TIMED;
+    }
+
+    void stopTiming(long startedAt) {
+        if (startedAt != NOT_TIMED)
+            decisionLatency.record(System.nanoTime() - startedAt);
+    }
+}
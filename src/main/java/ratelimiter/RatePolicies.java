@@ -0,0 +1,72 @@
+package ratelimiter;
+
+import java.util.Arrays;
+
+/*
+    The limits of each tier of customers for TieredRateLimiter, looked up by a small policy id.
+    A policy takes the same parameters as TokenBucketRateLimiter and is kept as the emission interval and burst tolerance
+    GCRA works with (see GcraRateLimiter), next to each other in a single long[], so resolving a policy is two array reads.
+
+    A table never changes once built, with() builds a new one. That is what lets a rate limiter swap its table while
+    requests are being decided: a request sees either the old or the new table, never half of each.
+ */
+public final class RatePolicies {
+    // Policy ids are kept in the top bits of each customer's state, see TieredArrivalTime
+    public static final int MAX_POLICIES = 128;
+    /*
+        How far ahead of the time it was taken at a theoretical arrival time can get, maxTokens + 1 emission intervals,
+        kept small enough for arrival times to fit next to the policy id. Without a refill no token ever comes back,
+        which is an emission interval longer than the whole range of int times.
+     */
+    static final long MAX_AHEAD = 1L << 54;
+    private static final long NO_REFILL_EMISSION_INTERVAL = 1L << (Integer.SIZE + GcraRateLimiter.FRACTION_BITS);
+
+    // The emission interval of policy i at 2 * i, its burst tolerance at 2 * i + 1
+    private final long[] limits;
+
+    // A table with just the default policy 0, which every customer starts with
+    public RatePolicies(int maxTokens, int refillRate, int refillWindow) {
+        this(new long[0], 0, maxTokens, refillRate, refillWindow);
+    }
+
+    private RatePolicies(long[] limits, int policyId, int maxTokens, int refillRate, int refillWindow) {
+        if (policyId < 0 || policyId >= MAX_POLICIES)
+            throw new IllegalArgumentException("policyId must be between 0 and " + (MAX_POLICIES - 1));
+        if (maxTokens < 0 || refillRate < 0 || refillWindow <= 0)
+            throw new IllegalArgumentException("maxTokens and refillRate must not be negative and refillWindow must be positive");
+
+        long emissionInterval = refillRate == 0
+                ? NO_REFILL_EMISSION_INTERVAL
+                : Math.max(1, ((long) refillWindow << GcraRateLimiter.FRACTION_BITS) / refillRate);
+        if (maxTokens + 1L > MAX_AHEAD / emissionInterval)
+            throw new IllegalArgumentException("maxTokens can be at most " + (MAX_AHEAD / emissionInterval - 1) + " with this refill");
+
+        // Ids between the existing policies and this one get the default policy
+        int policies = Math.max(limits.length / 2, policyId + 1);
+        this.limits = Arrays.copyOf(limits, 2 * policies);
+        for (int id = Math.max(1, limits.length / 2); id < policies; id++) {
+            this.limits[2 * id] = limits[0];
+            this.limits[2 * id + 1] = limits[1];
+        }
+        this.limits[2 * policyId] = emissionInterval;
+        this.limits[2 * policyId + 1] = maxTokens * emissionInterval;
+    }
+
+    // A copy of this table with policyId added, or replaced if it is there already
+    public RatePolicies with(int policyId, int maxTokens, int refillRate, int refillWindow) {
+        return new RatePolicies(limits, policyId, maxTokens, refillRate, refillWindow);
+    }
+
+    public int size() {
+        return limits.length / 2;
+    }
+
+    // A policy id that is not in the table, because a smaller table was swapped in, resolves to the default policy
+    long emissionInterval(int policyId) {
+        return limits[policyId < size() ? 2 * policyId : 0];
+    }
+
+    long burstTolerance(int policyId) {
+        return limits[policyId < size() ? 2 * policyId + 1 : 1];
+    }
+}
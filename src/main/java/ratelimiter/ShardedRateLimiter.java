@@ -0,0 +1,153 @@
+package ratelimiter;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+    Splits customers by hash over independent rate limiters, so that nothing one shard writes is shared with another.
+    Any RateLimiter can be sharded, each shard gets its own instance (and so its own state store) from the factory.
+    Every customer always lands on the same shard, so each shard decides exactly as an unsharded rate limiter would.
+
+    Each shard also counts the requests it allowed and denied. Those counters are written on every request by every thread
+    that lands on the shard, so they are LongAdders: a thread that finds a counter contended moves on to a cell of its own,
+    and the cells are only summed when the counts are read.
+ */
+public class ShardedRateLimiter implements RateLimiter {
+    private final Shard[] shards;
+    // Contention and expiry happen inside the shards, see the metrics() of each shard()
+    private final RateLimiterMetrics metrics;
+
+    public ShardedRateLimiter(int shardCount, Supplier<? extends RateLimiter> shardFactory) {
+        if (shardCount <= 0)
+            throw new IllegalArgumentException("shardCount must be positive");
+
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++)
+            shards[i] = new Shard(shardFactory.get());
+        this.metrics = new RateLimiterMetrics(() -> {
+            long trackedCustomers = 0;
+            for (Shard shard : shards)
+                trackedCustomers += shard.rateLimiter.metrics().trackedCustomers();
+            return trackedCustomers;
+        });
+    }
+
+    @Override
+    public boolean shouldAllowRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide(customerId, timestamp);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    @Override
+    public long decideRequest(int customerId, int timestamp) {
+        long startedAt = metrics.startTiming();
+        Shard shard = shards[shardOf(customerId)];
+        long decision = shard.rateLimiter.decideRequest(customerId, timestamp);
+        boolean allowed = RateLimitDecision.isAllowed(decision);
+        shard.count(allowed, 1);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return decision;
+    }
+
+    private boolean decide(int customerId, int timestamp) {
+        Shard shard = shards[shardOf(customerId)];
+        boolean allowed = shard.rateLimiter.shouldAllowRequest(customerId, timestamp);
+        shard.count(allowed, 1);
+        return allowed;
+    }
+
+    @Override
+    public void shouldAllowRequests(int[] customerIds, int[] timestamps, boolean[] results) {
+        CustomerBatch.checkLengths(customerIds, timestamps, results);
+
+        // Counting sort of the batch by shard, then each shard decides its part as one batch
+        int[] shardOfRequest = new int[customerIds.length];
+        int[] shardStarts = new int[shards.length + 1];
+        for (int i = 0; i < customerIds.length; i++) {
+            shardOfRequest[i] = shardOf(customerIds[i]);
+            shardStarts[shardOfRequest[i] + 1]++;
+        }
+        for (int shard = 0; shard < shards.length; shard++)
+            shardStarts[shard + 1] += shardStarts[shard];
+
+        int[] order = new int[customerIds.length];
+        int[] next = shardStarts.clone();
+        for (int i = 0; i < customerIds.length; i++)
+            order[next[shardOfRequest[i]]++] = i;
+
+        for (int shard = 0; shard < shards.length; shard++) {
+            int from = shardStarts[shard];
+            int count = shardStarts[shard + 1] - from;
+            if (count == 0)
+                continue;
+
+            int[] shardCustomerIds = new int[count];
+            int[] shardTimestamps = new int[count];
+            boolean[] shardResults = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                shardCustomerIds[i] = customerIds[order[from + i]];
+                shardTimestamps[i] = timestamps[order[from + i]];
+            }
+
+            shards[shard].rateLimiter.shouldAllowRequests(shardCustomerIds, shardTimestamps, shardResults);
+
+            int allowed = 0;
+            for (int i = 0; i < count; i++) {
+                results[order[from + i]] = shardResults[i];
+                if (shardResults[i])
+                    allowed++;
+            }
+            shards[shard].count(true, allowed);
+            shards[shard].count(false, count - allowed);
+            metrics.requestsDecided(allowed, count - allowed);
+        }
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public int shardOf(int customerId) {
+        // A different mix than the state tables use, otherwise all customers of a shard would also share one segment of its table
+        int hash = Integer.rotateLeft(customerId * 0x9E3779B9, 16);
+        return (int) (((hash & 0xFFFFFFFFL) * shards.length) >>> 32);
+    }
+
+    public long allowedRequests(int shard) {
+        return shards[shard].allowedRequests.sum();
+    }
+
+    public long deniedRequests(int shard) {
+        return shards[shard].deniedRequests.sum();
+    }
+
+    public RateLimiter shard(int shard) {
+        return shards[shard].rateLimiter;
+    }
+
+    static final class Shard {
+        final RateLimiter rateLimiter;
+        final LongAdder allowedRequests;
+        final LongAdder deniedRequests;
+
+        Shard(RateLimiter rateLimiter) {
+            this.rateLimiter = rateLimiter;
+            this.allowedRequests = new LongAdder();
+            this.deniedRequests = new LongAdder();
+        }
+
+        void count(boolean allowed, long requests) {
+            if (requests > 0)
+                (allowed ? allowedRequests : deniedRequests).add(requests);
+        }
+    }
+}
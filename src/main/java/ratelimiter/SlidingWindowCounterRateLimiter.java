@@ -1,69 +1,103 @@
 package ratelimiter;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-
-public class SlidingWindowCounterRateLimiter implements RateLimiter {
-    private final ConcurrentMap<Integer, RequestCounter> customerRequestCounterMap;
+// Each customer's counter is a single long in the state store, see RequestCounter
+public class SlidingWindowCounterRateLimiter extends PackedStateRateLimiter {
     private final int windowSize;
     private final int maxAllowedRequests;
 
     public SlidingWindowCounterRateLimiter(int windowSize, int maxAllowedRequests) {
+        this(windowSize, maxAllowedRequests, new IntStateTable());
+    }
+
+    public SlidingWindowCounterRateLimiter(int windowSize, int maxAllowedRequests, CustomerStateStore customerRequestCounterMap) {
+        this(windowSize, maxAllowedRequests, customerRequestCounterMap, CustomerExpiry.NONE);
+    }
+
+    public SlidingWindowCounterRateLimiter(int windowSize, int maxAllowedRequests, CustomerStateStore customerRequestCounterMap, CustomerExpiry customerExpiry) {
+        super(customerRequestCounterMap, customerExpiry);
+
+        // Window counts never go above maxAllowedRequests, which is what lets them fit in 16 bits each
+        if (maxAllowedRequests > RequestCounter.MAX_COUNT)
+            throw new IllegalArgumentException("maxAllowedRequests can be at most " + RequestCounter.MAX_COUNT);
+
         this.windowSize = windowSize;
         this.maxAllowedRequests = maxAllowedRequests;
-        customerRequestCounterMap = new ConcurrentHashMap<>();
     }
 
     @Override
-    public boolean shouldAllowRequest(int customerId, int timestamp) {
-        customerRequestCounterMap.putIfAbsent(customerId, new RequestCounter(0, 0, 0));
-
-        RequestCounter requestCounter = customerRequestCounterMap.get(customerId);
+    long admit(long requestCounter, int timestamp) {
+        if (requestCounter == CustomerStateStore.ABSENT)
+            requestCounter = RequestCounter.pack(0, 0, 0);
 
-        int elapsedTime = timestamp - requestCounter.getCurrentWindowStart();
+        int elapsedTime = timestamp - RequestCounter.currentWindowStart(requestCounter);
 
         if (elapsedTime >= windowSize) {
-            int newCurrentWindowStart = requestCounter.getCurrentWindowStart() + (elapsedTime / windowSize) * windowSize;
-            int newPreviousWindowCount = elapsedTime >= 2 * windowSize ? 0 : requestCounter.getCurrentWindowCount();
+            int newCurrentWindowStart = RequestCounter.currentWindowStart(requestCounter) + (elapsedTime / windowSize) * windowSize;
+            int newPreviousWindowCount = elapsedTime >= 2 * windowSize ? 0 : RequestCounter.currentWindowCount(requestCounter);
             int newCurrentWindowCount = 0;
 
-            customerRequestCounterMap.put(customerId, new RequestCounter(newPreviousWindowCount, newCurrentWindowCount, newCurrentWindowStart));
+            requestCounter = RequestCounter.pack(newPreviousWindowCount, newCurrentWindowCount, newCurrentWindowStart);
         }
 
-        requestCounter = customerRequestCounterMap.get(customerId);
-
         double previousWindowWeight = 1.0 - (double) elapsedTime / windowSize;
-        int effectiveRequestCount = (int) (requestCounter.getCurrentWindowCount() + requestCounter.getPreviousWindowCount() * previousWindowWeight);
+        int effectiveRequestCount = (int) (RequestCounter.currentWindowCount(requestCounter) + RequestCounter.previousWindowCount(requestCounter) * previousWindowWeight);
 
         if (effectiveRequestCount < maxAllowedRequests) {
-            customerRequestCounterMap.put(customerId, new RequestCounter(requestCounter.getPreviousWindowCount(), requestCounter.getCurrentWindowCount() + 1, requestCounter.getCurrentWindowStart()));
-            return true;
+            return RequestCounter.pack(RequestCounter.previousWindowCount(requestCounter), RequestCounter.currentWindowCount(requestCounter) + 1, RequestCounter.currentWindowStart(requestCounter));
         }
 
-        return false;
+        return DENIED;
+    }
+
+    @Override
+    long release(long requestCounter, int timestamp) {
+        int currentWindowStart = RequestCounter.currentWindowStart(requestCounter);
+        int previousWindowCount = RequestCounter.previousWindowCount(requestCounter);
+        int currentWindowCount = RequestCounter.currentWindowCount(requestCounter);
+
+        // The request counts in whichever window it fell into, unless that window is older than the previous one by now
+        if (timestamp >= currentWindowStart && currentWindowCount > 0)
+            return RequestCounter.pack(previousWindowCount, currentWindowCount - 1, currentWindowStart);
+        if ((long) timestamp >= (long) currentWindowStart - windowSize && timestamp < currentWindowStart && previousWindowCount > 0)
+            return RequestCounter.pack(previousWindowCount - 1, currentWindowCount, currentWindowStart);
+        return requestCounter;
+    }
+
+    @Override
+    int remainingPermits(long requestCounter, int timestamp) {
+        // admit() has moved the counter on to the window of timestamp, so this is the count it goes by for the next request
+        double previousWindowWeight = 1.0 - (double) (timestamp - RequestCounter.currentWindowStart(requestCounter)) / windowSize;
+        int effectiveRequestCount = (int) (RequestCounter.currentWindowCount(requestCounter) + RequestCounter.previousWindowCount(requestCounter) * previousWindowWeight);
+        return Math.max(0, maxAllowedRequests - effectiveRequestCount);
+    }
+
+    @Override
+    int idleAt(long requestCounter) {
+        // Two windows after the current one started, both the current and the previous window count are back to zero
+        return timeAfter(RequestCounter.currentWindowStart(requestCounter), 2L * windowSize);
     }
 }
 
-class RequestCounter {
-    private final int previousWindowCount;
-    private final int currentWindowCount;
-    private final int currentWindowStart;
+// A request counter packed into a long: currentWindowStart in the high 32 bits, then currentWindowCount and previousWindowCount in 16 bits each
+final class RequestCounter {
+    static final int MAX_COUNT = 0xFFFF;
+
+    private RequestCounter() {
+    }
 
-    public RequestCounter(int previousWindowCount, int currentWindowCount, int currentWindowStart) {
-        this.previousWindowCount = previousWindowCount;
-        this.currentWindowCount = currentWindowCount;
-        this.currentWindowStart = currentWindowStart;
+    static long pack(int previousWindowCount, int currentWindowCount, int currentWindowStart) {
+        return ((long) currentWindowStart << 32) | ((long) (currentWindowCount & MAX_COUNT) << 16) | (previousWindowCount & MAX_COUNT);
     }
 
-    public int getPreviousWindowCount() {
-        return previousWindowCount;
+    static int previousWindowCount(long requestCounter) {
+        return (int) requestCounter & MAX_COUNT;
     }
 
-    public int getCurrentWindowCount() {
-        return currentWindowCount;
+    static int currentWindowCount(long requestCounter) {
+        return (int) (requestCounter >>> 16) & MAX_COUNT;
     }
 
-    public int getCurrentWindowStart() {
-        return currentWindowStart;
+    static int currentWindowStart(long requestCounter) {
+        return (int) (requestCounter >>> 32);
     }
 }
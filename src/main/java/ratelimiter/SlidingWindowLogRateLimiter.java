@@ -1,34 +1,200 @@
 package ratelimiter;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.Arrays;
 
 public class SlidingWindowLogRateLimiter implements RateLimiter {
     /*
-        To further optimise on storage, we can use TreeMap instead of Queue, with mapping between timestamp and count of requests at that timestamp- this prevents us from storing each separate timestamp.
-        The time complexity will still be O(windowSize) in both.
+        Each customer's log is a ring of maxAllowedRequests int timestamps (see TimestampRings), the state store only maps the customer to its ring.
+        A customer can never have more than maxAllowedRequests timestamps in the window, so a full ring is all the log that is ever needed:
+        if the ring is not full the request is allowed, otherwise it is allowed only if the oldest timestamp has left the window,
+        in which case the new timestamp overwrites it. That is a single comparison instead of walking and counting a queue.
      */
-    private final ConcurrentMap<Integer, ConcurrentLinkedQueue<Integer>> customerRequestTimestampsMap;
+    private final CustomerStateStore customerRequestTimestampsMap;
+    private final TimestampRings requestTimestampRings;
+    private final CustomerExpiry customerExpiry;
+    private final CustomerExpiry.IdleCheck idleCheck;
+    private final RateLimiterMetrics metrics;
     private final int windowSize;
     private final int maxAllowedRequests;
 
     public SlidingWindowLogRateLimiter(int maxAllowedRequests, int windowSize) {
+        this(maxAllowedRequests, windowSize, new IntStateTable());
+    }
+
+    public SlidingWindowLogRateLimiter(int maxAllowedRequests, int windowSize, CustomerStateStore customerRequestTimestampsMap) {
+        this(maxAllowedRequests, windowSize, customerRequestTimestampsMap, CustomerExpiry.NONE);
+    }
+
+    public SlidingWindowLogRateLimiter(int maxAllowedRequests, int windowSize, CustomerStateStore customerRequestTimestampsMap, CustomerExpiry customerExpiry) {
         this.maxAllowedRequests = maxAllowedRequests;
         this.windowSize = windowSize;
-        this.customerRequestTimestampsMap = new ConcurrentHashMap<>();
+        this.customerRequestTimestampsMap = customerRequestTimestampsMap;
+        // The store only maps customers to rings, see StateSnapshot
+        if (customerRequestTimestampsMap instanceof OpenAddressingStateTable)
+            ((OpenAddressingStateTable) customerRequestTimestampsMap).holdReferences();
+        this.requestTimestampRings = new TimestampRings(maxAllowedRequests);
+        this.customerExpiry = customerExpiry;
+        this.idleCheck = this::expireIfIdle;
+        this.metrics = new RateLimiterMetrics(customerRequestTimestampsMap::size);
     }
 
     @Override
     public boolean shouldAllowRequest(int customerId, int timestamp) {
-        // computeIfAbsent() is thread-safe
-        ConcurrentLinkedQueue<Integer> requestTimestamps = customerRequestTimestampsMap.computeIfAbsent(customerId, k -> new ConcurrentLinkedQueue<>());
+        long startedAt = metrics.startTiming();
+        boolean allowed = decide(customerId, timestamp);
+        metrics.requestDecided(allowed);
+        metrics.stopTiming(startedAt);
+        return allowed;
+    }
+
+    private boolean decide(int customerId, int timestamp) {
+        if (maxAllowedRequests <= 0)
+            return false;
+
+        customerExpiry.advance(timestamp, idleCheck);
 
-        while (!requestTimestamps.isEmpty() && requestTimestamps.peek() < timestamp - windowSize)
-            requestTimestamps.poll();
+        boolean newCustomer;
+        boolean allowed;
+        // Reads and writes of a ring happen under the lock of its customer, so a ring is never touched by two requests at once
+        synchronized (requestTimestampRings.lockFor(customerId)) {
+            long ring = customerRequestTimestampsMap.get(customerId);
+            newCustomer = ring == CustomerStateStore.ABSENT;
+            if (newCustomer)
+                ring = allocateRing(customerId);
+
+            allowed = requestTimestampRings.offer((int) ring, timestamp, timestamp - windowSize);
+        }
+
+        // Tracking takes the expiry's lock, which must not be done while holding a customer lock since the expiry takes those the other way round
+        if (newCustomer)
+            customerExpiry.track(customerId, idleAt(timestamp));
+        return allowed;
+    }
+
+    @Override
+    public void shouldAllowRequests(int[] customerIds, int[] timestamps, boolean[] results) {
+        CustomerBatch.checkLengths(customerIds, timestamps, results);
+        if (maxAllowedRequests <= 0) {
+            Arrays.fill(results, false);
+            metrics.requestsDecided(0, results.length);
+            return;
+        }
+
+        long[] requests = CustomerBatch.sortByCustomer(customerIds);
+        if (timestamps.length > 0)
+            customerExpiry.advance(timestamps[timestamps.length - 1], idleCheck);
+
+        for (int from = 0, to; from < requests.length; from = to) {
+            to = CustomerBatch.endOfCustomer(requests, from);
+            int customerId = CustomerBatch.customerId(requests[from]);
+            int lastTimestamp = 0;
+            boolean newCustomer;
+
+            // One lock and one ring lookup for all of the customer's requests in the batch
+            synchronized (requestTimestampRings.lockFor(customerId)) {
+                long ring = customerRequestTimestampsMap.get(customerId);
+                newCustomer = ring == CustomerStateStore.ABSENT;
+                if (newCustomer)
+                    ring = allocateRing(customerId);
+
+                for (int request = from; request < to; request++) {
+                    int index = CustomerBatch.index(requests[request]);
+                    results[index] = requestTimestampRings.offer((int) ring, timestamps[index], timestamps[index] - windowSize);
+                    if (results[index])
+                        lastTimestamp = Math.max(lastTimestamp, timestamps[index]);
+                }
+            }
+
+            if (newCustomer)
+                customerExpiry.track(customerId, idleAt(lastTimestamp));
+        }
+
+        int allowed = 0;
+        for (boolean result : results) {
+            if (result)
+                allowed++;
+        }
+        metrics.requestsDecided(allowed, results.length - allowed);
+    }
+
+    @Override
+    public RateLimiterMetrics metrics() {
+        return metrics;
+    }
+
+    // The caller holds the customer's lock
+    private long allocateRing(int customerId) {
+        long ring = requestTimestampRings.allocate();
+        customerRequestTimestampsMap.compareAndSet(customerId, CustomerStateStore.ABSENT, ring);
+        return ring;
+    }
+
+    // Once the newest timestamp has left the window the log has nothing left that could deny a request
+    private int idleAt(int newestTimestamp) {
+        return PackedStateRateLimiter.timeAfter(newestTimestamp, windowSize + 1L);
+    }
+
+    private int expireIfIdle(int customerId, int timestamp) {
+        synchronized (requestTimestampRings.lockFor(customerId)) {
+            long ring = customerRequestTimestampsMap.get(customerId);
+            if (ring == CustomerStateStore.ABSENT)
+                return CustomerExpiry.IdleCheck.NOT_TRACKED;
+
+            int idleAt = idleAt(requestTimestampRings.newest((int) ring));
+            if (idleAt > timestamp)
+                return idleAt;
+
+            customerRequestTimestampsMap.compareAndSet(customerId, ring, CustomerStateStore.ABSENT);
+            requestTimestampRings.free((int) ring);
+            metrics.customerExpired();
+            return CustomerExpiry.IdleCheck.NOT_TRACKED;
+        }
+    }
+}
+
+// Rings of int timestamps (see IntRings), each one laid out as [head, size, timestamp 0 ... timestamp capacity - 1]
+final class TimestampRings extends IntRings {
+    private static final int HEAD = 0;
+    private static final int SIZE = 1;
+    private static final int TIMESTAMPS = 2;
+
+    private final int capacity;
+
+    TimestampRings(int capacity) {
+        super(capacity + TIMESTAMPS);
+        this.capacity = capacity;
+    }
+
+    @Override
+    void reset(int[] chunk, int offset) {
+        chunk[offset + HEAD] = 0;
+        chunk[offset + SIZE] = 0;
+    }
+
+    // The caller holds the ring's lock, and the ring holds at least one timestamp
+    int newest(int ring) {
+        int[] chunk = chunkOf(ring);
+        int offset = offsetOf(ring);
+        return chunk[offset + TIMESTAMPS + (chunk[offset + HEAD] + chunk[offset + SIZE] - 1) % capacity];
+    }
+
+    // Adds the timestamp if the ring has room or its oldest timestamp is before windowStart, the caller holds the ring's lock
+    boolean offer(int ring, int timestamp, int windowStart) {
+        int[] chunk = chunkOf(ring);
+        int offset = offsetOf(ring);
+        int head = chunk[offset + HEAD];
+        int size = chunk[offset + SIZE];
+
+        if (size < capacity) {
+            chunk[offset + TIMESTAMPS + (head + size) % capacity] = timestamp;
+            chunk[offset + SIZE] = size + 1;
+            return true;
+        }
 
-        if (requestTimestamps.size() < maxAllowedRequests) {
-            requestTimestamps.offer(timestamp);
+        if (chunk[offset + TIMESTAMPS + head] < windowStart) {
+            // The oldest timestamp has left the window, the new one takes its place and becomes the newest
+            chunk[offset + TIMESTAMPS + head] = timestamp;
+            chunk[offset + HEAD] = (head + 1) % capacity;
             return true;
         }
 
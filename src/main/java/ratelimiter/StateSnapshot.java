@@ -0,0 +1,219 @@
+package ratelimiter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Keeps a file with the customer states of a table up to date, so that a restarted node can pick up where it left off
+    instead of letting every customer burst at once.
+
+    The file is a header followed by records of customer states:
+        header:  int MAGIC, int VERSION
+        record:  int RECORD_MARK, int customer count, then (int customerId, long state) per customer
+    A full write has a record with every customer of each segment of the table, after which only the customers that changed
+    since the last write are appended (ABSENT for a removed one), so a write costs as much as what changed.
+    Records are restored in the order they were written and the last state of a customer wins. Once the file has grown
+    to several times the size of its latest full write it is rewritten from scratch and swapped in atomically.
+
+    States are restored as they were written, so the timestamps given to the rate limiters must mean the same thing
+    across restarts (for example from a TimeBase with a fixed epoch rather than time since the process started).
+    This works for every rate limiter whose whole state is in the table, which is all but SlidingWindowLogRateLimiter and
+    MultiSlotSlidingWindowRateLimiter: their tables only map customers to rings kept outside them, which would be restored
+    as ids pointing at nothing. A table either of them uses is refused.
+    Restoring through the rate limiter rather than straight into its table also tells its CustomerExpiry about the customers.
+ */
+public final class StateSnapshot implements Closeable {
+    private static final int MAGIC = 0x524C5353;
+    private static final int VERSION = 2;
+    private static final int RECORD_MARK = 0x53454730;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int ENTRY_BYTES = Integer.BYTES + Long.BYTES;
+    private static final int COMPACTION_FACTOR = 4;
+
+    private final OpenAddressingStateTable table;
+    private final Path file;
+    private final ScheduledExecutorService writer;
+    private FileChannel channel;
+    private ByteBuffer recordBuffer;
+    private long fullWriteBytes;
+
+    public StateSnapshot(OpenAddressingStateTable table, Path file) {
+        checkHoldsStates(table);
+        this.table = table;
+        this.file = file;
+        this.writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "state-snapshot-" + file.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.recordBuffer = ByteBuffer.allocate(1 << 16);
+    }
+
+    // Writes everything once, then the changes every period in the background
+    public void start(long period, TimeUnit unit) throws IOException {
+        writeFull();
+        writer.scheduleWithFixedDelay(() -> {
+            try {
+                writeChanges();
+            } catch (IOException e) {
+                // Keep the rate limiter running, the next write tries again and the previous file content is still valid
+                Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+            }
+        }, period, period, unit);
+    }
+
+    // Rewrites the whole file with every segment and atomically replaces the old one
+    public synchronized void writeFull() throws IOException {
+        // The rate limiter may have been given the table after the snapshot
+        checkHoldsStates(table);
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel full = FileChannel.open(temporaryFile, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(full, ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).flip());
+            for (int segment = 0; segment < table.segmentCount(); segment++) {
+                // Cleared before the states are read, see forEachChangedState()
+                table.clearChanged(segment);
+                startRecord();
+                table.forEachState(segment, this::addEntry);
+                writeRecord(full);
+            }
+            full.force(false);
+            fullWriteBytes = full.size();
+        }
+
+        if (channel != null)
+            channel.close();
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // Appends the customers that changed since the last write
+    public synchronized void writeChanges() throws IOException {
+        if (channel == null || channel.size() > fullWriteBytes * COMPACTION_FACTOR) {
+            writeFull();
+            return;
+        }
+
+        for (int segment = 0; segment < table.segmentCount(); segment++) {
+            startRecord();
+            table.forEachChangedState(segment, this::addEntry);
+            if (recordBuffer.position() > RECORD_HEADER_BYTES)
+                writeRecord(channel);
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.shutdownNow();
+        if (channel != null)
+            channel.close();
+    }
+
+    private void startRecord() {
+        recordBuffer.clear();
+        recordBuffer.putInt(RECORD_MARK).putInt(0);
+    }
+
+    private void addEntry(int customerId, long state) {
+        if (recordBuffer.remaining() < ENTRY_BYTES)
+            recordBuffer = ByteBuffer.allocate(recordBuffer.capacity() * 2).put(recordBuffer.flip());
+        recordBuffer.putInt(customerId).putLong(state);
+    }
+
+    private void writeRecord(FileChannel target) throws IOException {
+        recordBuffer.putInt(Integer.BYTES, (recordBuffer.position() - RECORD_HEADER_BYTES) / ENTRY_BYTES);
+        writeFully(target, recordBuffer.flip());
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            target.write(buffer);
+    }
+
+    /*
+        Loads the customer states of the file into states, returns how many more customers states tracks afterwards.
+        Only the small record headers are read through the channel, the customers themselves are read from a memory mapping of their record.
+        A record cut short by a crash in the middle of a write is ignored, together with anything after it.
+     */
+    public static long restore(Path file, CustomerStateStore states) throws IOException {
+        checkHoldsStates(states);
+        return replay(file, (customerId, state) -> {
+            while (true) {
+                long current = states.get(customerId);
+                if (current == state)
+                    return 0;
+                if (states.compareAndSet(customerId, current, state))
+                    return trackedChange(current, state);
+            }
+        });
+    }
+
+    // Like restore(Path, CustomerStateStore) into the rate limiter's store, also tracking the restored customers with its CustomerExpiry
+    public static long restore(Path file, RateLimiter rateLimiter) throws IOException {
+        if (!(rateLimiter instanceof PackedStateRateLimiter))
+            throw new IllegalArgumentException("Only rate limiters keeping each customer's state in a CustomerStateStore can be restored");
+        PackedStateRateLimiter packedStateRateLimiter = (PackedStateRateLimiter) rateLimiter;
+        return replay(file, (customerId, state) -> trackedChange(packedStateRateLimiter.restoreState(customerId, state), state));
+    }
+
+    private static long replay(Path file, RestoredState restoredState) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            if (!readFully(channel, header.limit(HEADER_BYTES), 0) || header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != VERSION)
+                throw new IOException(file + " is not a rate limiter state snapshot");
+
+            long restoredCustomers = 0;
+            long position = HEADER_BYTES;
+            while (readFully(channel, header.clear(), position) && header.getInt(0) == RECORD_MARK) {
+                int customers = header.getInt(Integer.BYTES);
+                long end = position + RECORD_HEADER_BYTES + (long) customers * ENTRY_BYTES;
+                if (customers < 0 || end > channel.size())
+                    break;
+
+                // In file order, so a later state of a customer overwrites an earlier one
+                MappedByteBuffer entries = channel.map(FileChannel.MapMode.READ_ONLY, position + RECORD_HEADER_BYTES, (long) customers * ENTRY_BYTES);
+                for (int i = 0; i < customers; i++)
+                    restoredCustomers += restoredState.restore(entries.getInt(), entries.getLong());
+                position = end;
+            }
+            return restoredCustomers;
+        }
+    }
+
+    private static void checkHoldsStates(CustomerStateStore states) {
+        if (states instanceof OpenAddressingStateTable && ((OpenAddressingStateTable) states).holdsReferences())
+            throw new IllegalArgumentException("The table only holds references to state its rate limiter keeps elsewhere, which cannot be snapshotted");
+    }
+
+    // +1 for a customer that is tracked from now on, -1 for one that no longer is
+    private static int trackedChange(long previousState, long state) {
+        if (previousState == CustomerStateStore.ABSENT)
+            return state == CustomerStateStore.ABSENT ? 0 : 1;
+        return state == CustomerStateStore.ABSENT ? -1 : 0;
+    }
+
+    private interface RestoredState {
+        // Puts the state in place and returns the change in the number of tracked customers
+        int restore(int customerId, long state);
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0)
+                return false;
+        }
+        return true;
+    }
+}
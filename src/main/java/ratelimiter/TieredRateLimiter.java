@@ -0,0 +1,122 @@
+package ratelimiter;
+
+/*
+    GCRA (see GcraRateLimiter) with limits per tier of customers instead of for the whole instance.
+    Each customer's policy id is kept in the top bits of its state, next to its theoretical arrival time (see TieredArrivalTime),
+    so the single read that gets the arrival time also says which limits apply, and those are two reads from the
+    policy table. There is no second lookup and no separate rate limiter instance per tier.
+
+    Customers start with the default policy 0 until assignPolicy() puts them in another tier. The table can be swapped
+    with updatePolicies() at any time: arrival times stay as they are and the new limits apply from the next request on.
+ */
+public class TieredRateLimiter extends PackedStateRateLimiter {
+    private volatile RatePolicies policies;
+
+    public TieredRateLimiter(RatePolicies policies) {
+        this(policies, new IntStateTable());
+    }
+
+    public TieredRateLimiter(RatePolicies policies, CustomerStateStore customerArrivalTimes) {
+        this(policies, customerArrivalTimes, CustomerExpiry.NONE);
+    }
+
+    public TieredRateLimiter(RatePolicies policies, CustomerStateStore customerArrivalTimes, CustomerExpiry customerExpiry) {
+        super(customerArrivalTimes, customerExpiry);
+        this.policies = policies;
+    }
+
+    public RatePolicies policies() {
+        return policies;
+    }
+
+    public void updatePolicies(RatePolicies policies) {
+        this.policies = policies;
+    }
+
+    // Puts the customer in the tier of policyId, keeping what it has used of its current limits
+    public void assignPolicy(int customerId, int policyId) {
+        if (policyId < 0 || policyId >= RatePolicies.MAX_POLICIES)
+            throw new IllegalArgumentException("policyId must be between 0 and " + (RatePolicies.MAX_POLICIES - 1));
+
+        while (true) {
+            long state = customerStates.get(customerId);
+            // A customer that is not tracked yet has a full bucket, which is any arrival time in the past
+            long arrivalTime = state == CustomerStateStore.ABSENT ? TieredArrivalTime.EARLIEST : TieredArrivalTime.arrivalTime(state);
+            long assigned = TieredArrivalTime.pack(policyId, arrivalTime);
+            if (customerStates.compareAndSet(customerId, state, assigned)) {
+                // A customer back in the default tier can be idle long before the expiry would look at it again
+                if (state == CustomerStateStore.ABSENT || idleAt(assigned) < idleAt(state))
+                    startTracking(customerId, assigned);
+                return;
+            }
+        }
+    }
+
+    @Override
+    long admit(long state, int timestamp) {
+        int policyId = state == CustomerStateStore.ABSENT ? 0 : TieredArrivalTime.policyId(state);
+        RatePolicies policies = this.policies;
+        long now = (long) timestamp << GcraRateLimiter.FRACTION_BITS;
+        long newArrivalTime = (state == CustomerStateStore.ABSENT ? now : Math.max(TieredArrivalTime.arrivalTime(state), now)) + policies.emissionInterval(policyId);
+
+        if (newArrivalTime - now > policies.burstTolerance(policyId))
+            return DENIED;
+        return TieredArrivalTime.pack(policyId, newArrivalTime);
+    }
+
+    @Override
+    int idleAt(long state) {
+        // Dropping a customer in another tier would put it back in the default one
+        if (TieredArrivalTime.policyId(state) != 0)
+            return Integer.MAX_VALUE;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, GcraRateLimiter.ceilToTimeUnit(TieredArrivalTime.arrivalTime(state))));
+    }
+
+    @Override
+    long release(long state, int timestamp) {
+        int policyId = TieredArrivalTime.policyId(state);
+        return TieredArrivalTime.pack(policyId, TieredArrivalTime.arrivalTime(state) - policies.emissionInterval(policyId));
+    }
+
+    @Override
+    int remainingPermits(long state, int timestamp) {
+        int policyId = TieredArrivalTime.policyId(state);
+        RatePolicies policies = this.policies;
+        long ahead = TieredArrivalTime.arrivalTime(state) - ((long) timestamp << GcraRateLimiter.FRACTION_BITS);
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, policies.burstTolerance(policyId) - ahead) / policies.emissionInterval(policyId));
+    }
+
+    @Override
+    int permitAvailableAt(long state, int timestamp) {
+        int policyId = TieredArrivalTime.policyId(state);
+        RatePolicies policies = this.policies;
+        long permitAt = TieredArrivalTime.arrivalTime(state) + policies.emissionInterval(policyId) - policies.burstTolerance(policyId);
+        return (int) Math.min(Integer.MAX_VALUE, GcraRateLimiter.ceilToTimeUnit(permitAt));
+    }
+}
+
+/*
+    A customer's policy id and theoretical arrival time packed into a long: the policy id in the top 8 bits and the
+    arrival time, signed fixed point like GcraRateLimiter's, in the low 56 bits. Policy ids stop below 128 so the top bit
+    stays clear, which keeps a state from ever being ABSENT.
+ */
+final class TieredArrivalTime {
+    private static final int ARRIVAL_TIME_BITS = 56;
+    private static final long ARRIVAL_TIME_MASK = (1L << ARRIVAL_TIME_BITS) - 1;
+    static final long EARLIEST = (long) Integer.MIN_VALUE << GcraRateLimiter.FRACTION_BITS;
+
+    private TieredArrivalTime() {
+    }
+
+    static long pack(int policyId, long arrivalTime) {
+        return ((long) policyId << ARRIVAL_TIME_BITS) | (arrivalTime & ARRIVAL_TIME_MASK);
+    }
+
+    static int policyId(long state) {
+        return (int) (state >>> ARRIVAL_TIME_BITS);
+    }
+
+    static long arrivalTime(long state) {
+        return state << (Long.SIZE - ARRIVAL_TIME_BITS) >> (Long.SIZE - ARRIVAL_TIME_BITS);
+    }
+}
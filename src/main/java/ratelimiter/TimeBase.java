@@ -0,0 +1,73 @@
+package ratelimiter;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Turns a nanosecond clock into the int timestamps rate limiters take: the number of whole ticks since an epoch.
+    Every customer's state has to fit in a single long, which leaves 32 bits for time, so the tick length decides both
+    how fine-grained limits can be and how long the timestamps last: 2^31 ticks are 24 days at 1 millisecond,
+    248 days at 10 milliseconds and 68 years at 1 second. The bucket rate limiters count tokens in fixed point,
+    so a limit does not get any burstier at coarser ticks than the tick itself.
+
+    The epoch is a wall clock time, which is read once to line the nanosecond clock up with it. Timestamps of time bases with
+    the same epoch and tick mean the same time in every process, which is what a StateSnapshot restored after a restart needs.
+    Without an epoch the time base counts from when it was created, which is only good for states that never leave the process.
+    Once the ticks since the epoch no longer fit in an int now() throws, since any timestamp it could give would be wrong.
+ */
+public final class TimeBase {
+    private final RateLimitClock clock;
+    private final long tickNanos;
+    private final Instant epoch;
+    // The nanosecond clock's reading at the epoch
+    private final long origin;
+
+    public TimeBase(long tickLength, TimeUnit unit) {
+        this(RateLimitClock.SYSTEM, tickLength, unit);
+    }
+
+    public TimeBase(RateLimitClock clock, long tickLength, TimeUnit unit) {
+        this(clock, Clock.systemUTC(), tickLength, unit, null);
+    }
+
+    public TimeBase(long tickLength, TimeUnit unit, Instant epoch) {
+        this(RateLimitClock.SYSTEM, Clock.systemUTC(), tickLength, unit, epoch);
+    }
+
+    // A null epoch is the time the time base is created
+    public TimeBase(RateLimitClock clock, Clock wallClock, long tickLength, TimeUnit unit, Instant epoch) {
+        if (tickLength <= 0)
+            throw new IllegalArgumentException("tickLength must be positive");
+
+        long nanoTime = clock.nanoTime();
+        Instant wallTime = wallClock.instant();
+        if (epoch == null)
+            epoch = wallTime;
+        if (epoch.isAfter(wallTime))
+            throw new IllegalArgumentException("epoch " + epoch + " is after the current time " + wallTime);
+
+        this.clock = clock;
+        this.tickNanos = unit.toNanos(tickLength);
+        this.epoch = epoch;
+        this.origin = nanoTime - Duration.between(epoch, wallTime).toNanos();
+    }
+
+    // The current timestamp to pass to shouldAllowRequest()
+    public int now() {
+        long ticks = (clock.nanoTime() - origin) / tickNanos;
+        if (ticks > Integer.MAX_VALUE)
+            throw new IllegalStateException("Timestamps since " + epoch + " have run out, use a later epoch or longer ticks");
+        return (int) ticks;
+    }
+
+    public Instant epoch() {
+        return epoch;
+    }
+
+    // The number of ticks in a duration, for working out windows and refill rates
+    public int ticks(long duration, TimeUnit unit) {
+        return (int) Math.min(Integer.MAX_VALUE, unit.toNanos(duration) / tickNanos);
+    }
+}
@@ -0,0 +1,173 @@
+package ratelimiter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Hierarchical timing wheel of customers waiting to become idle.
+    Each level has 64 slots, a slot of level n covers 64^n time units, and 6 levels cover the whole int range.
+    A customer goes into the lowest level whose slot does not also hold the current time, and is moved down a level
+    each time the wheel reaches its slot, until it reaches level 0 and is checked. That is O(1) work per customer and level,
+    however many customers are tracked, and time ranges without anything due are skipped a whole slot at a time.
+
+    Customers are spread over independent wheels by id so that tracking new customers does not all go through one lock.
+ */
+public final class TimingWheelExpiry implements CustomerExpiry {
+    private final Wheel[] wheels;
+    // The latest timestamp any wheel has been asked to advance to, so only one request per time unit does the work
+    private final AtomicInteger advancedTo;
+
+    public TimingWheelExpiry() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public TimingWheelExpiry(int concurrencyLevel) {
+        if (concurrencyLevel <= 0)
+            throw new IllegalArgumentException("concurrencyLevel must be positive");
+
+        this.wheels = new Wheel[Integer.highestOneBit(Math.min(concurrencyLevel, 1 << 10) * 2 - 1)];
+        for (int i = 0; i < wheels.length; i++)
+            wheels[i] = new Wheel();
+        this.advancedTo = new AtomicInteger(Integer.MIN_VALUE);
+    }
+
+    @Override
+    public void track(int customerId, int idleAt) {
+        Wheel wheel = wheels[(customerId * 0x9E3779B9 >>> 16) & (wheels.length - 1)];
+        synchronized (wheel) {
+            wheel.schedule(customerId, idleAt);
+        }
+    }
+
+    @Override
+    public void advance(int timestamp, IdleCheck idleCheck) {
+        int current = advancedTo.get();
+        if (timestamp <= current || !advancedTo.compareAndSet(current, timestamp))
+            return;
+
+        for (Wheel wheel : wheels) {
+            synchronized (wheel) {
+                wheel.advance(timestamp, idleCheck);
+            }
+        }
+    }
+
+    // Number of customers waiting in the wheels
+    public long size() {
+        long size = 0;
+        for (Wheel wheel : wheels) {
+            synchronized (wheel) {
+                size += wheel.size;
+            }
+        }
+        return size;
+    }
+
+    // Not thread-safe, every access holds the wheel's lock
+    private static final class Wheel {
+        private static final int SLOT_BITS = 6;
+        private static final int SLOTS = 1 << SLOT_BITS;
+        private static final int SLOT_MASK = SLOTS - 1;
+        private static final int LEVELS = 6;
+        private static final int NOT_STARTED = Integer.MIN_VALUE;
+
+        // Entries are idleAt in the high 32 bits and customerId in the low 32 bits, slot s of level l is bucket l * SLOTS + s
+        private final long[][] buckets = new long[LEVELS * SLOTS][];
+        private final int[] bucketSizes = new int[LEVELS * SLOTS];
+        private final int[] levelSizes = new int[LEVELS];
+        private int currentTime = NOT_STARTED;
+        private int size;
+
+        Wheel() {
+            Arrays.fill(buckets, new long[0]);
+        }
+
+        void schedule(int customerId, int idleAt) {
+            if (currentTime == NOT_STARTED)
+                currentTime = idleAt - 1;
+            // Anything already due goes into the next slot, the current one has already been checked
+            place(customerId, Math.max(idleAt, currentTime + 1));
+            size++;
+        }
+
+        void advance(int timestamp, IdleCheck idleCheck) {
+            if (currentTime == NOT_STARTED) {
+                currentTime = timestamp;
+                return;
+            }
+
+            while (currentTime < timestamp) {
+                if (size == 0) {
+                    currentTime = timestamp;
+                    return;
+                }
+
+                // Skip straight to the next slot boundary of the lowest level that has anything in it
+                long next = (long) currentTime + 1;
+                for (int level = 0; level < LEVELS - 1 && levelSizes[level] == 0; level++) {
+                    int shift = SLOT_BITS * (level + 1);
+                    next = (((long) currentTime >>> shift) + 1) << shift;
+                }
+                if (next > timestamp) {
+                    currentTime = timestamp;
+                    return;
+                }
+
+                currentTime = (int) next;
+                tick(idleCheck);
+            }
+        }
+
+        private void tick(IdleCheck idleCheck) {
+            // Moving down starts at the highest level whose slot starts now, so its customers can keep moving down in the same tick
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((currentTime & ((1 << (SLOT_BITS * level)) - 1)) == 0)
+                    cascade(level);
+            }
+
+            int bucket = currentTime & SLOT_MASK;
+            long[] entries = buckets[bucket];
+            int count = bucketSizes[bucket];
+            bucketSizes[bucket] = 0;
+            levelSizes[0] -= count;
+            size -= count;
+
+            // Nothing below is placed back in this bucket: anything rescheduled is due at currentTime + 1 at the earliest
+            for (int i = 0; i < count; i++) {
+                int customerId = (int) entries[i];
+                int idleAt = idleCheck.expireIfIdle(customerId, currentTime);
+                if (idleAt != IdleCheck.NOT_TRACKED) {
+                    place(customerId, Math.max(idleAt, currentTime + 1));
+                    size++;
+                }
+            }
+        }
+
+        private void cascade(int level) {
+            int bucket = level * SLOTS + ((currentTime >>> (SLOT_BITS * level)) & SLOT_MASK);
+            long[] entries = buckets[bucket];
+            int count = bucketSizes[bucket];
+            bucketSizes[bucket] = 0;
+            levelSizes[level] -= count;
+
+            // Every customer in the slot is due within it, so each one lands on a lower level
+            for (int i = 0; i < count; i++)
+                place((int) entries[i], (int) (entries[i] >>> 32));
+        }
+
+        private void place(int customerId, int idleAt) {
+            // The highest bit in which idleAt differs from now decides the level, idleAt == now lands in the current level 0 slot
+            int differentBits = idleAt ^ currentTime;
+            int level = differentBits == 0 ? 0 : (31 - Integer.numberOfLeadingZeros(differentBits)) / SLOT_BITS;
+            int bucket = level * SLOTS + ((idleAt >>> (SLOT_BITS * level)) & SLOT_MASK);
+
+            long[] entries = buckets[bucket];
+            int count = bucketSizes[bucket];
+            if (count == entries.length)
+                buckets[bucket] = entries = Arrays.copyOf(entries, Math.max(4, count * 2));
+            entries[count] = ((long) idleAt << 32) | (customerId & 0xFFFFFFFFL);
+            bucketSizes[bucket] = count + 1;
+            levelSizes[level]++;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package ratelimiter;
+
+/*
+    A token bucket packed into a long: lastRefillTime in the high 32 bits, remainingTokens in the low 32 bits.
+    remainingTokens is unsigned fixed point with 16 bits for whole tokens and 16 bits for the fraction of a token.
+ */
+final class TokenBucket {
+    static final long ONE_TOKEN = 1L << 16;
+    static final int MAX_TOKENS = 0xFFFF;
+
+    private TokenBucket() {
+    }
+
+    static long pack(int lastRefillTime, long remainingTokens) {
+        return ((long) lastRefillTime << 32) | (remainingTokens & 0xFFFFFFFFL);
+    }
+
+    static int lastRefillTime(long bucket) {
+        return (int) (bucket >>> 32);
+    }
+
+    static long remainingTokens(long bucket) {
+        return bucket & 0xFFFFFFFFL;
+    }
+}
@@ -1,10 +1,14 @@
 package ratelimiter;
 
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+/*
+    Each customer's bucket is a single long in the state store holding both lastRefillTime and remainingTokens (see TokenBucket).
+    Refilling and taking a token is then one compareAndSet() on that long, so there is no window between a get() and a put()
+    in which another thread can hand out the same token, and no new object is created per request.
 
-public class TokenBucketRateLimiter implements RateLimiter {
-    private final ConcurrentMap<Integer, TokenBucket> customerTokenBuckets;
+    Tokens are counted in fixed point, so a refill adds the tokens of however much of a refillWindow has passed:
+    with 10 tokens per 1000 time units a token comes back every 100, instead of all 10 at once at the end of the window.
+ */
+public class TokenBucketRateLimiter extends PackedStateRateLimiter {
     // Maximum tokens the bucket can hold
     private final int maxTokens;
     // Tokens added per second
@@ -13,68 +17,90 @@ public class TokenBucketRateLimiter implements RateLimiter {
     private final int refillWindow;
 
     public TokenBucketRateLimiter(int maxTokens, int refillRate, int refillWindow) {
+        this(maxTokens, refillRate, refillWindow, new IntStateTable());
+    }
+
+    public TokenBucketRateLimiter(int maxTokens, int refillRate, int refillWindow, CustomerStateStore customerTokenBuckets) {
+        this(maxTokens, refillRate, refillWindow, customerTokenBuckets, CustomerExpiry.NONE);
+    }
+
+    public TokenBucketRateLimiter(int maxTokens, int refillRate, int refillWindow, CustomerStateStore customerTokenBuckets, CustomerExpiry customerExpiry) {
+        super(customerTokenBuckets, customerExpiry);
+
+        if (maxTokens > TokenBucket.MAX_TOKENS)
+            throw new IllegalArgumentException("maxTokens can be at most " + TokenBucket.MAX_TOKENS);
+
         this.maxTokens = maxTokens;
         this.refillRate = refillRate;
         this.refillWindow = refillWindow;
-        this.customerTokenBuckets = new ConcurrentHashMap<>();
     }
 
     @Override
-    public boolean shouldAllowRequest(int customerId, int timestamp) {
-        refillTokens(customerId, timestamp);
+    long admit(long bucket, int timestamp) {
+        // A new customer starts with a full bucket
+        long refilled = bucket == CustomerStateStore.ABSENT ? TokenBucket.pack(timestamp, maxTokens * TokenBucket.ONE_TOKEN) : refillTokens(bucket, timestamp);
+        long currentTokens = TokenBucket.remainingTokens(refilled);
 
-        TokenBucket bucket = customerTokenBuckets.get(customerId);
-
-        int lastRefillTimestamp = bucket.getLastRefillTime();
-        int currentTokens = bucket.getRemainingTokens();
-
-        if (currentTokens > 0) {
-            customerTokenBuckets.put(customerId, new TokenBucket(lastRefillTimestamp, currentTokens - 1));
-            return true;
+        if (currentTokens >= TokenBucket.ONE_TOKEN) {
+            return TokenBucket.pack(TokenBucket.lastRefillTime(refilled), currentTokens - TokenBucket.ONE_TOKEN);
         }
 
-        return false;
+        // Less than a whole token, and nothing worth writing back since the refill is worked out again from lastRefillTime next time
+        return DENIED;
     }
 
-    private void refillTokens(int customerId, int timestamp) {
-        if (!customerTokenBuckets.containsKey(customerId)) {
-            TokenBucket bucket = new TokenBucket(timestamp, maxTokens);
-            customerTokenBuckets.put(customerId, bucket);
-            return;
-        }
+    @Override
+    int idleAt(long bucket) {
+        // The bucket is full again once enough time has passed to refill the missing tokens
+        long missingTokens = maxTokens * TokenBucket.ONE_TOKEN - TokenBucket.remainingTokens(bucket);
+        if (missingTokens <= 0)
+            return TokenBucket.lastRefillTime(bucket);
+        if (refillRate <= 0)
+            return Integer.MAX_VALUE;
 
-        /*
-            Ideally for concurrent situations, get() and put() separately are susceptible to race condition.
-            In order to fix it, use compute() to combine the logic for checking and then updating map
-         */
-        TokenBucket bucket = customerTokenBuckets.get(customerId);
-        int lastRefillTime = bucket.getLastRefillTime();
-        int currentTokens = bucket.getRemainingTokens();
-        int tokensToRefill = ((timestamp - lastRefillTime) / refillWindow) * refillRate;
-
-        if (tokensToRefill > 0) {
-            int tokensToReset = Math.min(currentTokens + tokensToRefill, maxTokens);
-            TokenBucket newBucket = new TokenBucket(timestamp, tokensToReset);
-            customerTokenBuckets.put(customerId, newBucket);
-        }
+        return timeAfter(TokenBucket.lastRefillTime(bucket), timeToRefill(missingTokens));
     }
-}
 
-// Is thread-safe because of immutability
-class TokenBucket {
-    private final int lastRefillTime;
-    private final int remainingTokens;
+    @Override
+    long release(long bucket, int timestamp) {
+        // Tokens refilled since then do not change that the token taken is missing, unless the bucket is full anyway
+        return TokenBucket.pack(TokenBucket.lastRefillTime(bucket), Math.min(TokenBucket.remainingTokens(bucket) + TokenBucket.ONE_TOKEN, maxTokens * TokenBucket.ONE_TOKEN));
+    }
 
-    public TokenBucket(int lastRefillTime, int remainingTokens) {
-        this.lastRefillTime = lastRefillTime;
-        this.remainingTokens = remainingTokens;
+    @Override
+    int remainingPermits(long bucket, int timestamp) {
+        // Refilled up to timestamp by admit() already, only whole tokens can be taken
+        return (int) (TokenBucket.remainingTokens(bucket) / TokenBucket.ONE_TOKEN);
     }
 
-    public int getLastRefillTime() {
-        return lastRefillTime;
+    @Override
+    int permitAvailableAt(long bucket, int timestamp) {
+        // Denied means that less than a whole token has been refilled since lastRefillTime
+        if (refillRate <= 0 || maxTokens <= 0)
+            return Integer.MAX_VALUE;
+        return timeAfter(TokenBucket.lastRefillTime(bucket), timeToRefill(TokenBucket.ONE_TOKEN - TokenBucket.remainingTokens(bucket)));
     }
 
-    public int getRemainingTokens() {
-        return remainingTokens;
+    private long refillTokens(long bucket, int timestamp) {
+        long elapsedTime = timestamp - TokenBucket.lastRefillTime(bucket);
+        if (elapsedTime <= 0)
+            return bucket;
+
+        // Long enough to fill even an empty bucket, which also keeps the multiplications below from overflowing
+        if (elapsedTime * refillRate >= (long) maxTokens * refillWindow)
+            return TokenBucket.pack(timestamp, maxTokens * TokenBucket.ONE_TOKEN);
+
+        long tokensToRefill = elapsedTime * refillRate * TokenBucket.ONE_TOKEN / refillWindow;
+        if (tokensToRefill > 0)
+            return TokenBucket.pack(timestamp, Math.min(TokenBucket.remainingTokens(bucket) + tokensToRefill, maxTokens * TokenBucket.ONE_TOKEN));
+
+        // Not even a fraction of a token yet, moving lastRefillTime would lose the time that has passed
+        return bucket;
     }
-}
\ No newline at end of file
+
+    // The time it takes to refill the tokens (in fixed point), rounded up to whole time units
+    private long timeToRefill(long tokens) {
+        long refillPerTimeUnit = (long) refillRate * TokenBucket.ONE_TOKEN;
+        return (tokens * refillWindow + refillPerTimeUnit - 1) / refillPerTimeUnit;
+    }
+}
@@ -0,0 +1,66 @@
+package ratelimiter;
+
+/*
+    TCP Vegas applied to a concurrency limit: the lowest latency seen is the downstream with nothing queued,
+    and how far the (smoothed) latency is above that says how many of the requests in flight are waiting rather than being served,
+    limit * (latency - minLatency) / latency. The limit goes up by one while fewer than QUEUED_LOW wait and down by one
+    once more than QUEUED_HIGH do, so it settles where the downstream runs at capacity with a short queue,
+    and moves before anything times out instead of after. A dropped request halves the limit.
+
+    The lowest latency is learnt again every PROBE_SAMPLES completions, so a downstream that has become slower for good
+    is not taken to be overloaded forever.
+ */
+public final class VegasConcurrencyLimit implements ConcurrencyLimit {
+    static final int QUEUED_LOW = 3;
+    static final int QUEUED_HIGH = 6;
+    static final int PROBE_SAMPLES = 1000;
+    // New latencies count for 1 / 2^SMOOTHING_SHIFT of the smoothed latency
+    private static final int SMOOTHING_SHIFT = 3;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile int limit;
+    private long minLatency;
+    // Scaled up by 2^SMOOTHING_SHIFT, so small differences between latencies are not rounded away
+    private long smoothedLatencySum;
+    private int samplesUntilProbe;
+
+    public VegasConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit)
+            throw new IllegalArgumentException("Limits must be positive with minLimit <= initialLimit <= maxLimit");
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = initialLimit;
+        this.minLatency = Long.MAX_VALUE;
+        this.samplesUntilProbe = PROBE_SAMPLES;
+    }
+
+    @Override
+    public int limit() {
+        return limit;
+    }
+
+    @Override
+    public synchronized void sample(long latency, int inFlight, boolean dropped) {
+        if (dropped) {
+            limit = Math.max(minLimit, limit / 2);
+            return;
+        }
+
+        latency = Math.max(1, latency);
+        if (--samplesUntilProbe == 0) {
+            minLatency = latency;
+            samplesUntilProbe = PROBE_SAMPLES;
+        }
+        minLatency = Math.min(minLatency, latency);
+        smoothedLatencySum = smoothedLatencySum == 0 ? latency << SMOOTHING_SHIFT : smoothedLatencySum + latency - (smoothedLatencySum >> SMOOTHING_SHIFT);
+        long smoothedLatency = Math.max(1, smoothedLatencySum >> SMOOTHING_SHIFT);
+
+        long queued = limit * Math.max(0, smoothedLatency - minLatency) / smoothedLatency;
+        if (queued > QUEUED_HIGH)
+            limit = Math.max(minLimit, limit - 1);
+        else if (queued < QUEUED_LOW && inFlight * 2 >= limit)
+            limit = Math.min(maxLimit, limit + 1);
+    }
+}
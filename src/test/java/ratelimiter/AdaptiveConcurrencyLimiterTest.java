@@ -0,0 +1,90 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveConcurrencyLimiterTest {
+    @Test
+    public void shouldAllowRequestsOnlyUpToTheLimitInFlight() {
+        AdaptiveConcurrencyLimiter rateLimiter = new AdaptiveConcurrencyLimiter(new AimdConcurrencyLimit(2, 1, 2, 100));
+
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(200, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(300, 11));
+
+        rateLimiter.requestCompleted(10);
+        assertEquals(1, rateLimiter.inFlight());
+        assertTrue(rateLimiter.shouldAllowRequest(300, 12));
+        assertFalse(rateLimiter.shouldAllowRequest(400, 12));
+    }
+
+    @Test
+    public void shouldIgnoreACompletionReportedTwice() {
+        AdaptiveConcurrencyLimiter rateLimiter = new AdaptiveConcurrencyLimiter(new AimdConcurrencyLimit(2, 1, 2, 100));
+
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        rateLimiter.requestCompleted(10);
+        rateLimiter.requestDropped();
+        assertEquals(0, rateLimiter.inFlight());
+        // The ignored drop did not back the limit off either
+        assertEquals(2, rateLimiter.limit());
+
+        assertTrue(rateLimiter.shouldAllowRequest(200, 12));
+        assertTrue(rateLimiter.shouldAllowRequest(300, 12));
+        assertFalse(rateLimiter.shouldAllowRequest(400, 12));
+    }
+
+    @Test
+    public void shouldRaiseTheLimitWhileRequestsCompleteInTimeAndBackOffOnceTheyDoNot() {
+        AdaptiveConcurrencyLimiter rateLimiter = new AdaptiveConcurrencyLimiter(new AimdConcurrencyLimit(10, 1, 100, 100));
+
+        for (int round = 0; round < 5; round++) {
+            fillUpToTheLimit(rateLimiter);
+            rateLimiter.requestCompleted(10);
+        }
+        assertEquals(15, rateLimiter.limit());
+
+        rateLimiter.requestCompleted(500);
+        assertEquals(13, rateLimiter.limit());
+        rateLimiter.requestDropped();
+        assertEquals(11, rateLimiter.limit());
+    }
+
+    @Test
+    public void shouldNotRaiseTheLimitWhileMostOfItIsUnused() {
+        AdaptiveConcurrencyLimiter rateLimiter = new AdaptiveConcurrencyLimiter(new AimdConcurrencyLimit(10, 1, 100, 100));
+
+        for (int request = 0; request < 100; request++) {
+            assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+            rateLimiter.requestCompleted(10);
+        }
+        assertEquals(10, rateLimiter.limit());
+    }
+
+    @Test
+    public void shouldLowerTheVegasLimitOnceLatencyShowsRequestsQueueing() {
+        VegasConcurrencyLimit limit = new VegasConcurrencyLimit(20, 1, 100);
+
+        for (int sample = 0; sample < 10; sample++)
+            limit.sample(10, limit.limit(), false);
+        assertEquals(30, limit.limit());
+
+        // Twice the latency with nothing else changed means about half of what is in flight is waiting
+        for (int sample = 0; sample < 10; sample++)
+            limit.sample(20, limit.limit(), false);
+        assertTrue(limit.limit() < 30);
+
+        int lowered = limit.limit();
+        limit.sample(10, lowered, true);
+        assertEquals(lowered / 2, limit.limit());
+    }
+
+    private static void fillUpToTheLimit(AdaptiveConcurrencyLimiter rateLimiter) {
+        while (rateLimiter.shouldAllowRequest(100, 11)) {
+            // Keeps taking places until the limit is in flight
+        }
+    }
+}
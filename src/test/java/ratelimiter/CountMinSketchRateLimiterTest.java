@@ -0,0 +1,66 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CountMinSketchRateLimiterTest {
+    @Test
+    public void shouldLimitRequestsWithinTheWindow() {
+        RateLimiter rateLimiter = new CountMinSketchRateLimiter(10, 2);
+        int aCustomerId = 100;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 10));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+        assertTrue(rateLimiter.shouldAllowRequest(200, 12));
+    }
+
+    @Test
+    public void shouldWeighThePreviousWindowLikeTheSlidingWindowCounter() {
+        RateLimiter rateLimiter = new CountMinSketchRateLimiter(10, 4);
+        int aCustomerId = 100;
+
+        for (int request = 0; request < 4; request++)
+            assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 10));
+
+        // 4 previous requests weigh 4 * 0.8 = 3.2 two time units into the next window, so room for one more
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 22));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 22));
+        // Two windows later nothing is left
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 40));
+    }
+
+    @Test
+    public void shouldStartEveryWindowFromNothingWhileReusingTheSketches() {
+        RateLimiter rateLimiter = new CountMinSketchRateLimiter(10, 2);
+        int aCustomerId = 100;
+
+        // Late in each window the previous one weighs only 0.1, and every third time a window is skipped altogether
+        int windowStart = 0;
+        for (int window = 0; window < 20; window++) {
+            windowStart += window % 3 == 0 ? 20 : 10;
+            int timestamp = windowStart + 9;
+            assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, timestamp));
+            assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, timestamp));
+            assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, timestamp));
+        }
+    }
+
+    @Test
+    public void shouldNeverAllowMoreThanTheLimitHoweverManyCustomersShareTheSketch() {
+        RateLimiter rateLimiter = new CountMinSketchRateLimiter(10, 5, 64, 2);
+
+        for (int customerId = 0; customerId < 10_000; customerId++) {
+            int allowed = 0;
+            for (int request = 0; request < 10; request++) {
+                if (rateLimiter.shouldAllowRequest(customerId, 10))
+                    allowed++;
+            }
+            assertTrue(allowed <= 5);
+        }
+        assertEquals(0, rateLimiter.metrics().trackedCustomers());
+    }
+}
@@ -0,0 +1,79 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CustomerKeyTableTest {
+    @Test
+    public void shouldGiveTheSameCustomerForTheSameKeyHoweverItIsHeld() {
+        CustomerKeyTable customerKeys = new CustomerKeyTable(2);
+        String[] keys = {"", "a", "api-key", "api-key-123456789", "\u00e9t\u00e9-\u20ac-\ud83d\ude00-\ud83d", "0123456789abcdef"};
+
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] inLargerArray = new byte[bytes.length + 5];
+            System.arraycopy(bytes, 0, inLargerArray, 3, bytes.length);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 5).order(ByteOrder.BIG_ENDIAN);
+            direct.put(inLargerArray).clear();
+
+            assertEquals(key, i, customerKeys.idOf(key));
+            assertEquals(key, i, customerKeys.idOf(new StringBuilder(key)));
+            assertEquals(key, i, customerKeys.idOf(bytes, 0, bytes.length));
+            assertEquals(key, i, customerKeys.idOf(inLargerArray, 3, bytes.length));
+            assertEquals(key, i, customerKeys.idOf(ByteBuffer.wrap(inLargerArray), 3, bytes.length));
+            assertEquals(key, i, customerKeys.idOf(direct, 3, bytes.length));
+            assertEquals(0, direct.position());
+        }
+        assertEquals(keys.length, customerKeys.size());
+
+        byte[] longBytes = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN).putLong(1L << 40).array();
+        int longCustomerId = customerKeys.idOf(1L << 40);
+        assertEquals(longCustomerId, customerKeys.idOf(longBytes, 0, Long.BYTES));
+        assertNotEquals(longCustomerId, customerKeys.idOf(1L << 41));
+    }
+
+    @Test
+    public void shouldGiveKeysWhoseCustomerIdsCollideCustomersOfTheirOwn() {
+        // Among a few hundred thousand keys some are bound to get the same hashed customer id
+        Map<Integer, String> keysByCustomerId = new HashMap<>();
+        String key = null;
+        String collidingKey = null;
+        for (int i = 0; collidingKey == null; i++) {
+            key = "customer-" + i;
+            collidingKey = keysByCustomerId.put(CustomerKeys.of(key), key);
+        }
+        assertEquals(CustomerKeys.of(key), CustomerKeys.of(collidingKey));
+
+        CustomerKeyTable customerKeys = new CustomerKeyTable();
+        RateLimiter rateLimiter = new TokenBucketRateLimiter(1, 1, 10);
+        assertTrue(rateLimiter.shouldAllowRequest(customerKeys.idOf(key), 11));
+        assertTrue(rateLimiter.shouldAllowRequest(customerKeys.idOf(collidingKey), 11));
+        assertFalse(rateLimiter.shouldAllowRequest(customerKeys.idOf(key), 11));
+    }
+
+    @Test
+    public void shouldKeepEveryIdAsTheTableGrows() {
+        CustomerKeyTable customerKeys = new CustomerKeyTable(0);
+        for (int key = 0; key < 100_000; key++)
+            assertEquals(key, customerKeys.idOf("customer-" + key));
+        for (int key = 0; key < 100_000; key++)
+            assertEquals(key, customerKeys.idOf("customer-" + key));
+        assertEquals(100_000, customerKeys.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void shouldRejectByteRangeOutsideTheKey() {
+        new CustomerKeyTable().idOf(new byte[8], 4, 5);
+    }
+}
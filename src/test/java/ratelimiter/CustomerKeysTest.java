@@ -0,0 +1,69 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CustomerKeysTest {
+    @Test
+    public void shouldGiveTheSameCustomerForTheSameKeyHoweverItIsHeld() {
+        String[] keys = {"", "a", "api-key", "api-key-123456789", "\u00e9t\u00e9-\u20ac-\ud83d\ude00-\ud83d", "0123456789abcdef"};
+
+        for (String key : keys) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] inLargerArray = new byte[bytes.length + 5];
+            System.arraycopy(bytes, 0, inLargerArray, 3, bytes.length);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length + 5).order(ByteOrder.BIG_ENDIAN);
+            direct.put(inLargerArray).clear();
+
+            int customerId = CustomerKeys.of(key);
+            assertEquals(key, customerId, CustomerKeys.of(new StringBuilder(key)));
+            assertEquals(key, customerId, CustomerKeys.of(bytes, 0, bytes.length));
+            assertEquals(key, customerId, CustomerKeys.of(inLargerArray, 3, bytes.length));
+            assertEquals(key, customerId, CustomerKeys.of(ByteBuffer.wrap(inLargerArray), 3, bytes.length));
+            assertEquals(key, customerId, CustomerKeys.of(direct, 3, bytes.length));
+            assertEquals(0, direct.position());
+        }
+    }
+
+    @Test
+    public void shouldSpreadSimilarKeysOverDifferentCustomers() {
+        Set<Integer> stringCustomers = new HashSet<>();
+        Set<Integer> longCustomers = new HashSet<>();
+        for (int key = 0; key < 10_000; key++) {
+            stringCustomers.add(CustomerKeys.of("customer-" + key));
+            longCustomers.add(CustomerKeys.of((long) key << 32));
+        }
+
+        assertEquals(10_000, stringCustomers.size());
+        assertEquals(10_000, longCustomers.size());
+        assertNotEquals(CustomerKeys.of("ab"), CustomerKeys.of("ab\u0000"));
+    }
+
+    @Test
+    public void shouldRateLimitKeysThatAreNotInts() {
+        RateLimiter rateLimiter = new TokenBucketRateLimiter(1, 1, 10);
+        byte[] request = "GET /?key=api-key-1 ".getBytes(StandardCharsets.US_ASCII);
+
+        assertTrue(rateLimiter.shouldAllowRequest("api-key-1", 11));
+        assertFalse(rateLimiter.shouldAllowRequest(request, 10, 9, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(ByteBuffer.wrap(request), 10, 9, 11));
+        assertTrue(rateLimiter.shouldAllowRequest("api-key-2", 11));
+        assertTrue(rateLimiter.shouldAllowRequest(1L << 40, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(1L << 40, 11));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void shouldRejectByteRangeOutsideTheKey() {
+        CustomerKeys.of(new byte[8], 4, 5);
+    }
+}
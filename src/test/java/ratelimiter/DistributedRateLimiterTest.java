@@ -0,0 +1,85 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DistributedRateLimiterTest {
+    @Test
+    public void shouldEnforceTheGlobalLimitAcrossAllNodes() {
+        QuotaLeaseTransport coordinator = new InProcessQuotaLeaseTransport(new TokenBucketRateLimiter(100, 0, 1));
+        RateLimiter[] nodes = new RateLimiter[20];
+        for (int node = 0; node < nodes.length; node++)
+            nodes[node] = new DistributedRateLimiter(coordinator, 4, 1);
+
+        int allowed = 0;
+        for (int request = 0; request < 1000; request++) {
+            if (nodes[request % nodes.length].shouldAllowRequest(100, 11))
+                allowed++;
+        }
+
+        assertEquals(100, allowed);
+    }
+
+    @Test
+    public void shouldAdmitFromTheLeaseWithoutAskingTheCoordinator() {
+        int[] leaseRequests = new int[1];
+        QuotaLeaseTransport coordinator = (customerId, timestamp, permits) -> {
+            leaseRequests[0]++;
+            return permits;
+        };
+        RateLimiter node = new DistributedRateLimiter(coordinator, 10, 5);
+
+        for (int request = 0; request < 10; request++)
+            assertTrue(node.shouldAllowRequest(100, 11 + request % 5));
+
+        assertEquals(1, leaseRequests[0]);
+    }
+
+    @Test
+    public void shouldDropLeaseOnceItHasExpired() {
+        QuotaLeaseTransport coordinator = new InProcessQuotaLeaseTransport(new FixedWindowCounterRateLimiter(3, 10));
+        RateLimiter node = new DistributedRateLimiter(coordinator, 3, 10);
+
+        assertTrue(node.shouldAllowRequest(100, 10));
+        assertTrue(node.shouldAllowRequest(100, 19));
+        assertTrue(node.shouldAllowRequest(100, 19));
+        assertFalse(node.shouldAllowRequest(100, 19));
+        assertTrue(node.shouldAllowRequest(100, 20));
+    }
+
+    @Test
+    public void shouldAskTheCoordinatorOncePerTimestampWhileNothingIsGranted() {
+        int[] leaseRequests = new int[1];
+        QuotaLeaseTransport coordinator = (customerId, timestamp, permits) -> {
+            leaseRequests[0]++;
+            return timestamp < 20 ? 0 : permits;
+        };
+        RateLimiter node = new DistributedRateLimiter(coordinator, 10, 5);
+
+        for (int request = 0; request < 10; request++)
+            assertFalse(node.shouldAllowRequest(100, 11));
+        assertEquals(1, leaseRequests[0]);
+
+        assertFalse(node.shouldAllowRequest(100, 12));
+        assertTrue(node.shouldAllowRequest(100, 20));
+        assertEquals(3, leaseRequests[0]);
+    }
+
+    @Test
+    public void shouldDropCustomersOnceTheirLeaseHasExpired() {
+        QuotaLeaseTransport coordinator = new InProcessQuotaLeaseTransport(new TokenBucketRateLimiter(100, 100, 1));
+        IntStateTable customerLeases = new IntStateTable();
+        RateLimiter node = new DistributedRateLimiter(coordinator, 4, 10, customerLeases, new TimingWheelExpiry());
+
+        assertTrue(node.shouldAllowRequest(100, 11));
+        assertTrue(node.shouldAllowRequest(200, 15));
+        assertEquals(2, customerLeases.size());
+
+        node.shouldAllowRequest(200, 21);
+        assertEquals(CustomerStateStore.ABSENT, customerLeases.get(100));
+        assertEquals(1, customerLeases.size());
+    }
+}
@@ -2,6 +2,7 @@ package ratelimiter;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -49,4 +50,29 @@ public class FixedWindowTokenBucketRateLimiterTest {
         assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 19));
         assertFalse(rateLimiter.shouldAllowRequest(anotherCustomerId, 19));
     }
+
+    @Test
+    public void shouldDecideBatchOfRequestsLikeTheSameRequestsOneByOne() {
+        int[] customerIds = {100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200};
+        int[] timestamps = {11, 11, 12, 12, 13, 13, 14, 14, 18, 18, 19, 19, 20, 20};
+        boolean[] results = new boolean[customerIds.length];
+
+        rateLimiter.shouldAllowRequests(customerIds, timestamps, results);
+
+        assertArrayEquals(new boolean[]{true, true, true, true, true, true, true, true, true, true, false, false, true, true}, results);
+    }
+
+    @Test
+    public void shouldStartEveryWindowWithAllTokensHoweverLongAgoTheLastRequestWas() {
+        FixedWindowTokenBucketRateLimiter rateLimiter = new FixedWindowTokenBucketRateLimiter(10, 1);
+        int aCustomerId = 100;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, -5));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, -1));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 0));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 1_000_000_000));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 1_000_000_009));
+        // A late request from an older window counts against the newer window
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 999_999_999));
+    }
 }
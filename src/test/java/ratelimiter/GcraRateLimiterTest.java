@@ -0,0 +1,61 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GcraRateLimiterTest {
+    private final GcraRateLimiter rateLimiter = new GcraRateLimiter(5, 2, 1);
+
+    @Test
+    public void shouldAllowBurstOfMaxTokensThenRefillRatePerWindow() {
+        int aCustomerId = 100;
+
+        for (int request = 0; request < 5; request++)
+            assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+
+        assertTrue(rateLimiter.shouldAllowRequest(200, 12));
+    }
+
+    @Test
+    public void shouldDecideLikeTheTokenBucket() {
+        Random random = new Random(42);
+        int[][] limits = {{5, 2, 1}, {1, 2, 10}, {10, 3, 7}, {3, 0, 1}};
+
+        for (int[] limit : limits) {
+            RateLimiter gcra = new GcraRateLimiter(limit[0], limit[1], limit[2]);
+            RateLimiter tokenBucket = new TokenBucketRateLimiter(limit[0], limit[1], limit[2]);
+            int timestamp = 0;
+
+            for (int request = 0; request < 10_000; request++) {
+                timestamp += random.nextInt(3);
+                int customerId = random.nextInt(5);
+                assertEquals("Request " + request + " at " + timestamp, tokenBucket.shouldAllowRequest(customerId, timestamp), gcra.shouldAllowRequest(customerId, timestamp));
+            }
+        }
+    }
+
+    @Test
+    public void shouldStopTrackingCustomerOnceItsBucketIsFullAgain() {
+        IntStateTable customerArrivalTimes = new IntStateTable();
+        GcraRateLimiter rateLimiter = new GcraRateLimiter(5, 2, 1, customerArrivalTimes, new TimingWheelExpiry());
+
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+
+        assertTrue(rateLimiter.shouldAllowRequest(200, 12));
+        assertEquals(2, customerArrivalTimes.size());
+        assertTrue(rateLimiter.shouldAllowRequest(200, 13));
+        assertEquals(1, customerArrivalTimes.size());
+    }
+}
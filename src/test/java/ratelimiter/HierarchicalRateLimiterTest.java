@@ -0,0 +1,101 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HierarchicalRateLimiterTest {
+    // Customers 100 to 199 belong to tenant 1, 200 to 299 to tenant 2
+    private final RateLimiter rateLimiter = new HierarchicalRateLimiter(
+            new TokenBucketRateLimiter(2, 0, 10),
+            new TokenBucketRateLimiter(3, 3, 10),
+            new TokenBucketRateLimiter(5, 1, 10),
+            customerId -> customerId / 100);
+
+    @Test
+    public void shouldDenyOnceTheCustomerLimitIsReached() {
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(100, 11));
+    }
+
+    @Test
+    public void shouldDenyOnceTheTenantLimitIsReachedWithoutTakingFromTheCustomer() {
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(101, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(102, 11));
+
+        // Customer 102, whose tokens are never refilled, still has both of them once its tenant has tokens again
+        assertTrue(rateLimiter.shouldAllowRequest(102, 21));
+        assertTrue(rateLimiter.shouldAllowRequest(102, 21));
+        assertFalse(rateLimiter.shouldAllowRequest(102, 21));
+    }
+
+    @Test
+    public void shouldDenyOnceTheGlobalLimitIsReached() {
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(101, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(102, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(200, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(201, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(202, 11));
+    }
+
+    @Test
+    public void shouldGiveBackWhatWasTakenWhenALaterLevelDenies() {
+        PackedStateRateLimiter customerLimit = new TokenBucketRateLimiter(2, 1, 10);
+        PackedStateRateLimiter tenantLimit = new TokenBucketRateLimiter(1, 1, 10);
+
+        assertTrue(customerLimit.decide(100, 11));
+        customerLimit.giveBack(100, 11);
+        assertTrue(tenantLimit.decide(1, 11));
+        assertFalse(tenantLimit.wouldAdmit(1, 11));
+        tenantLimit.giveBack(1, 11);
+
+        assertTrue(customerLimit.decide(100, 11));
+        assertTrue(customerLimit.decide(100, 11));
+        assertFalse(customerLimit.decide(100, 11));
+        assertTrue(tenantLimit.wouldAdmit(1, 11));
+    }
+
+    @Test
+    public void shouldLookEachLevelUpOnceAndOnlyTheCustomerForARequestItDenies() {
+        AtomicInteger lookups = new AtomicInteger();
+        RateLimiter rateLimiter = new HierarchicalRateLimiter(
+                new TokenBucketRateLimiter(1, 0, 10, countingLookups(lookups)),
+                new TokenBucketRateLimiter(3, 3, 10, countingLookups(lookups)),
+                new TokenBucketRateLimiter(5, 1, 10, countingLookups(lookups)),
+                customerId -> customerId / 100);
+
+        assertTrue(RateLimitDecision.isAllowed(rateLimiter.decideRequest(100, 11)));
+        assertEquals(3, lookups.getAndSet(0));
+        assertFalse(rateLimiter.shouldAllowRequest(100, 11));
+        assertEquals(1, lookups.get());
+    }
+
+    private static CustomerStateStore countingLookups(AtomicInteger lookups) {
+        IntStateTable customerStates = new IntStateTable();
+        return new CustomerStateStore() {
+            @Override
+            public long get(int customerId) {
+                lookups.incrementAndGet();
+                return customerStates.get(customerId);
+            }
+
+            @Override
+            public boolean compareAndSet(int customerId, long expectedState, long newState) {
+                return customerStates.compareAndSet(customerId, expectedState, newState);
+            }
+
+            @Override
+            public long size() {
+                return customerStates.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,109 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HotKeyLeasingRateLimiterTest {
+    @Test
+    public void shouldDecideLikeTheRateLimiterWhenNoCustomerIsContended() {
+        RateLimiter rateLimiter = new HotKeyLeasingRateLimiter(new TokenBucketRateLimiter(2, 1, 10), 16);
+        int aCustomerId = 100;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 21));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 21));
+    }
+
+    @Test
+    public void shouldNeverAdmitMoreThanTheRateLimiterAndMissAtMostTheSlack() throws Exception {
+        int slack = 64;
+        RateLimiter rateLimiter = new HotKeyLeasingRateLimiter(new TokenBucketRateLimiter(10_000, 0, 1), slack);
+        int threads = 8;
+        int requestsPerThread = 5_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+
+        try {
+            List<Future<Integer>> allowed = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                allowed.add(executor.submit(() -> {
+                    start.await();
+                    int count = 0;
+                    for (int i = 0; i < requestsPerThread; i++) {
+                        if (rateLimiter.shouldAllowRequest(100, 11))
+                            count++;
+                    }
+                    return count;
+                }));
+            }
+            start.countDown();
+
+            int totalAllowed = 0;
+            for (Future<Integer> future : allowed)
+                totalAllowed += future.get();
+            assertTrue("Allowed " + totalAllowed, totalAllowed <= 10_000);
+            assertTrue("Allowed " + totalAllowed, totalAllowed >= 10_000 - slack);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldAdmitAsManyAsTheRateLimiterOverTimeLessAtMostTheSlack() {
+        int slack = 64;
+        IntStateTable customerTokenBuckets = new IntStateTable();
+        AtomicBoolean raceLost = new AtomicBoolean();
+        // The first update loses a race, as if another thread got in first, which makes the customer hot
+        CustomerStateStore racingTokenBuckets = new CustomerStateStore() {
+            @Override
+            public long get(int customerId) {
+                return customerTokenBuckets.get(customerId);
+            }
+
+            @Override
+            public boolean compareAndSet(int customerId, long expectedState, long newState) {
+                return raceLost.getAndSet(true) && customerTokenBuckets.compareAndSet(customerId, expectedState, newState);
+            }
+
+            @Override
+            public long size() {
+                return customerTokenBuckets.size();
+            }
+        };
+        RateLimiter rateLimiter = new HotKeyLeasingRateLimiter(new TokenBucketRateLimiter(10_000, 1_000, 1, racingTokenBuckets), slack);
+        RateLimiter plainRateLimiter = new TokenBucketRateLimiter(10_000, 1_000, 1);
+
+        // Demand exceeds the refill at every timestamp, so every permit a lease drops is a request fewer
+        int allowed = 0;
+        int plainAllowed = 0;
+        for (int timestamp = 1; timestamp <= 50; timestamp++) {
+            for (int i = 0; i < 4_000; i++) {
+                if (rateLimiter.shouldAllowRequest(100, timestamp))
+                    allowed++;
+                if (plainRateLimiter.shouldAllowRequest(100, timestamp))
+                    plainAllowed++;
+            }
+        }
+
+        // Only the lease of the last timestamp can still hold permits
+        assertTrue("Allowed " + allowed + " of " + plainAllowed, allowed <= plainAllowed);
+        assertTrue("Allowed " + allowed + " of " + plainAllowed, allowed >= plainAllowed - slack);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectRateLimiterThatCannotLeasePermits() {
+        new HotKeyLeasingRateLimiter(new SlidingWindowLogRateLimiter(10, 10), 16);
+    }
+}
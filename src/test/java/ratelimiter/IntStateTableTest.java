@@ -0,0 +1,96 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IntStateTableTest {
+    private final IntStateTable table = new IntStateTable(16, 2);
+
+    @Test
+    public void shouldTrackCustomerOnlyAfterInsertingFromAbsent() {
+        int aCustomerId = 100;
+
+        assertEquals(CustomerStateStore.ABSENT, table.get(aCustomerId));
+        assertFalse(table.compareAndSet(aCustomerId, 1, 2));
+
+        assertTrue(table.compareAndSet(aCustomerId, CustomerStateStore.ABSENT, 1));
+        assertFalse(table.compareAndSet(aCustomerId, CustomerStateStore.ABSENT, 1));
+        assertTrue(table.compareAndSet(aCustomerId, 1, 2));
+
+        assertEquals(2, table.get(aCustomerId));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void shouldStopTrackingCustomerWhenStateIsSetToAbsent() {
+        int aCustomerId = 100;
+        table.compareAndSet(aCustomerId, CustomerStateStore.ABSENT, 1);
+
+        assertTrue(table.compareAndSet(aCustomerId, 1, CustomerStateStore.ABSENT));
+
+        assertEquals(CustomerStateStore.ABSENT, table.get(aCustomerId));
+        assertEquals(0, table.size());
+        assertTrue(table.compareAndSet(aCustomerId, CustomerStateStore.ABSENT, 3));
+    }
+
+    @Test
+    public void shouldTrackCustomerWithIdZero() {
+        assertTrue(table.compareAndSet(0, CustomerStateStore.ABSENT, 7));
+
+        assertEquals(7, table.get(0));
+        assertEquals(CustomerStateStore.ABSENT, table.get(1));
+    }
+
+    @Test
+    public void shouldKeepStatesWhileGrowingBeyondExpectedCustomers() {
+        for (int customerId = 1; customerId <= 10_000; customerId++)
+            assertTrue(table.compareAndSet(customerId, CustomerStateStore.ABSENT, customerId * 10L));
+
+        for (int customerId = 1; customerId <= 10_000; customerId++)
+            assertEquals(customerId * 10L, table.get(customerId));
+        assertEquals(10_000, table.size());
+    }
+
+    @Test
+    public void shouldNotLoseUpdatesWhenCustomersAreAddedConcurrently() throws InterruptedException {
+        int threads = 8;
+        int customers = 20_000;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int thread = 0; thread < threads; thread++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                // Every thread increments every customer once, which forces CAS retries and resizes to overlap
+                for (int customerId = 1; customerId <= customers; customerId++) {
+                    while (true) {
+                        long state = table.get(customerId);
+                        long incremented = state == CustomerStateStore.ABSENT ? 1 : state + 1;
+                        if (table.compareAndSet(customerId, state, incremented))
+                            break;
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+        for (int customerId = 1; customerId <= customers; customerId++)
+            assertEquals(threads, table.get(customerId));
+        assertEquals(customers, table.size());
+    }
+}
@@ -0,0 +1,40 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void shouldKeepSmallValuesExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 10; value++)
+            histogram.record(value);
+
+        assertEquals(10, histogram.count());
+        assertEquals(5, histogram.valueAtPercentile(50));
+        assertEquals(10, histogram.valueAtPercentile(100));
+    }
+
+    @Test
+    public void shouldReportPercentilesWithinOneSixteenth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100_000; value++)
+            histogram.record(value * 100);
+
+        long median = histogram.valueAtPercentile(50);
+        long p99 = histogram.valueAtPercentile(99);
+        assertTrue("Median " + median, Math.abs(median - 5_000_000) <= 5_000_000 / 16);
+        assertTrue("p99 " + p99, Math.abs(p99 - 9_900_000) <= 9_900_000 / 16);
+    }
+
+    @Test
+    public void shouldMapEveryValueToTheBucketCoveringIt() {
+        for (long value : new long[]{0, 15, 16, 17, 31, 32, 33, 1_000_003, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value <= LatencyHistogram.highestValueOf(bucket));
+            assertTrue(bucket == 0 || value > LatencyHistogram.highestValueOf(bucket - 1));
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ratelimiter;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -52,4 +53,28 @@ public class LeakyBucketRateLimiterTest {
         assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
         assertFalse(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
     }
+
+    @Test
+    public void shouldDecideBatchOfRequestsLikeTheSameRequestsOneByOne() {
+        int[] customerIds = {100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200};
+        int[] timestamps = {11, 11, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 13, 13};
+        boolean[] results = new boolean[customerIds.length];
+
+        rateLimiter.shouldAllowRequests(customerIds, timestamps, results);
+
+        assertArrayEquals(new boolean[]{true, true, true, true, true, true, true, true, true, true, true, true, false, false, true, true}, results);
+    }
+
+    @Test
+    public void shouldLeakRequestsForPartOfALeakWindow() {
+        LeakyBucketRateLimiter rateLimiter = new LeakyBucketRateLimiter(1, 2, 10);
+        int aCustomerId = 100;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 15));
+        // Half a leak window leaks one of the 2 requests of the window
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 16));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 18));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 21));
+    }
 }
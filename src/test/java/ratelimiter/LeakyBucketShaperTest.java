@@ -0,0 +1,149 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LeakyBucketShaperTest {
+    private final AtomicInteger clock = new AtomicInteger(10);
+    private final List<Integer> released = new ArrayList<>();
+
+    @Test
+    public void shouldReleaseQueuedRequestsAtTheLeakRate() {
+        LeakyBucketShaper shaper = new LeakyBucketShaper(5, 1, 5, clock::get, Runnable::run);
+
+        for (int request = 0; request < 3; request++) {
+            int thisRequest = request;
+            assertTrue(shaper.submit(() -> released.add(thisRequest)));
+        }
+        assertEquals(15, shaper.expectedDelay());
+
+        for (int time = 10; time <= 20; time++) {
+            clock.set(time);
+            shaper.tick();
+            assertEquals((time - 10) / 5 + 1, released.size());
+        }
+        assertEquals(List.of(0, 1, 2), released);
+
+        assertEquals(3, shaper.queueLatency().count());
+        assertEquals(10, shaper.queueLatency().valueAtPercentile(100));
+    }
+
+    @Test
+    public void shouldTurnRequestsAwayOnlyWhileTheBucketIsFull() {
+        LeakyBucketShaper shaper = new LeakyBucketShaper(2, 1, 5, clock::get, Runnable::run);
+
+        assertTrue(shaper.submit(() -> released.add(0)));
+        assertTrue(shaper.submit(() -> released.add(1)));
+        assertFalse(shaper.submit(() -> released.add(2)));
+        assertEquals(2, shaper.queuedRequests());
+
+        shaper.tick();
+        assertTrue(shaper.submit(() -> released.add(3)));
+        assertEquals(List.of(0), released);
+    }
+
+    @Test
+    public void shouldNotSaveUpTurnsWhileTheQueueIsEmpty() {
+        LeakyBucketShaper shaper = new LeakyBucketShaper(5, 1, 5, clock::get, Runnable::run);
+
+        clock.set(100);
+        shaper.tick();
+        for (int request = 0; request < 3; request++)
+            shaper.submit(() -> released.add(0));
+        shaper.tick();
+
+        assertEquals(1, released.size());
+    }
+
+    @Test
+    public void shouldQueueEveryRequestSubmittedConcurrently() throws Exception {
+        int threads = 4;
+        int requestsPerThread = 10_000;
+        LeakyBucketShaper shaper = new LeakyBucketShaper(threads * requestsPerThread, 1, 1, clock::get, Runnable::run);
+        AtomicInteger run = new AtomicInteger();
+
+        List<Thread> submitters = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            Thread submitter = new Thread(() -> {
+                for (int request = 0; request < requestsPerThread; request++)
+                    assertTrue(shaper.submit(run::incrementAndGet));
+            });
+            submitters.add(submitter);
+            submitter.start();
+        }
+        for (Thread submitter : submitters)
+            submitter.join();
+        assertFalse(shaper.submit(run::incrementAndGet));
+
+        clock.addAndGet(threads * requestsPerThread);
+        shaper.tick();
+        assertEquals(threads * requestsPerThread, run.get());
+        assertEquals(0, shaper.queuedRequests());
+    }
+
+    @Test
+    public void shouldKeepReleasingRequestsAfterTheExecutorThrows() {
+        LeakyBucketShaper shaper = new LeakyBucketShaper(5, 1, 1, clock::get, Runnable::run);
+
+        shaper.submit(() -> {
+            throw new IllegalStateException("Request failed");
+        });
+        shaper.submit(() -> released.add(1));
+        for (int time = 10; time <= 11; time++) {
+            clock.set(time);
+            shaper.tick();
+        }
+
+        assertEquals(List.of(1), released);
+        assertEquals(1, shaper.failedRequests());
+    }
+
+    @Test
+    public void shouldHandRejectedRequestOverAgainOnTheNextTick() {
+        AtomicInteger rejections = new AtomicInteger(1);
+        LeakyBucketShaper shaper = new LeakyBucketShaper(5, 1, 1, clock::get, request -> {
+            if (rejections.getAndDecrement() > 0)
+                throw new RejectedExecutionException();
+            request.run();
+        });
+
+        shaper.submit(() -> released.add(0));
+        shaper.submit(() -> released.add(1));
+        shaper.tick();
+        assertEquals(List.of(), released);
+        assertEquals(2, shaper.queuedRequests());
+
+        // The turn the rejected request kept and the one that has leaked since
+        clock.set(11);
+        shaper.tick();
+        assertEquals(List.of(0, 1), released);
+        assertEquals(1, shaper.rejectedRequests());
+    }
+
+    @Test(timeout = 5_000)
+    public void shouldKeepTickingInTheBackgroundAfterTheExecutorThrows() throws InterruptedException {
+        try (LeakyBucketShaper shaper = new LeakyBucketShaper(5, 1, 1, clock::get, request -> {
+            throw new IllegalStateException("Executor failed");
+        })) {
+            shaper.submit(() -> released.add(0));
+            shaper.start(1, TimeUnit.MILLISECONDS);
+            while (shaper.failedRequests() == 0)
+                Thread.sleep(1);
+
+            // Only a later tick can hand this one over
+            clock.set(11);
+            shaper.submit(() -> released.add(1));
+            while (shaper.failedRequests() < 2)
+                Thread.sleep(1);
+        }
+    }
+}
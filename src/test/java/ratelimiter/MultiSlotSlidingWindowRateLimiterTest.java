@@ -0,0 +1,86 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MultiSlotSlidingWindowRateLimiterTest {
+    // Windows of 10 split into 5 slots of 2
+    private final MultiSlotSlidingWindowRateLimiter rateLimiter = new MultiSlotSlidingWindowRateLimiter(10, 4, 5);
+
+    @Test
+    public void shouldCountTheShareOfTheOldestSlotStillInsideTheWindow() {
+        int aCustomerId = 100;
+
+        for (int request = 0; request < 4; request++)
+            assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 0));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 0));
+
+        // The slot at 0 - 1 has all of its share left at 10, and half of it at 11, which is 2 of its 4 requests
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 10));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+
+        // At 12 the slot has left the window, leaving the 2 requests of the slot at 10 - 11
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 13));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 13));
+    }
+
+    @Test
+    public void shouldCountLateRequestsInTheNewestSlot() {
+        int aCustomerId = 100;
+        int anotherCustomerId = 200;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 8));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 3));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 4));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 9));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 2));
+
+        // Counted in the slot at 8 - 9 rather than back when they were sent, so all 4 requests are still in the window at 18
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 18));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 19));
+
+        assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 18));
+    }
+
+    @Test
+    public void shouldDecideBatchOfRequestsLikeTheSameRequestsOneByOne() {
+        int[] customerIds = {100, 200, 100, 100, 200, 100, 100, 100, 100};
+        int[] timestamps = {0, 0, 0, 1, 1, 1, 1, 10, 11};
+        boolean[] results = new boolean[customerIds.length];
+
+        rateLimiter.shouldAllowRequests(customerIds, timestamps, results);
+
+        assertArrayEquals(new boolean[]{true, true, true, true, true, true, false, false, true}, results);
+    }
+
+    @Test
+    public void shouldStartExpiredCustomerWithEmptySlots() {
+        IntStateTable customerSlotRings = new IntStateTable();
+        MultiSlotSlidingWindowRateLimiter rateLimiter = new MultiSlotSlidingWindowRateLimiter(10, 2, 5, customerSlotRings, new TimingWheelExpiry());
+        int aCustomerId = 100;
+        int anotherCustomerId = 200;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 1));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 2));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 3));
+
+        // Expires the first customer, whose ring is then reused by the next new customer
+        assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 14));
+        assertEquals(CustomerStateStore.ABSENT, customerSlotRings.get(aCustomerId));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 14));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 14));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 14));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectWindowThatDoesNotSplitIntoWholeSlots() {
+        new MultiSlotSlidingWindowRateLimiter(10, 4, 3);
+    }
+}
@@ -0,0 +1,47 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapStateTableTest {
+    private final OffHeapStateTable table = new OffHeapStateTable(16, 2);
+
+    @Test
+    public void shouldTrackCustomerUntilStateIsSetToAbsent() {
+        int aCustomerId = 100;
+
+        assertEquals(CustomerStateStore.ABSENT, table.get(aCustomerId));
+        assertTrue(table.compareAndSet(aCustomerId, CustomerStateStore.ABSENT, 1));
+        assertFalse(table.compareAndSet(aCustomerId, 2, 3));
+        assertTrue(table.compareAndSet(aCustomerId, 1, 2));
+        assertEquals(2, table.get(aCustomerId));
+
+        assertTrue(table.compareAndSet(aCustomerId, 2, CustomerStateStore.ABSENT));
+        assertEquals(CustomerStateStore.ABSENT, table.get(aCustomerId));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void shouldKeepStatesWhileGrowingBeyondExpectedCustomers() {
+        for (int customerId = 0; customerId < 10_000; customerId++)
+            assertTrue(table.compareAndSet(customerId, CustomerStateStore.ABSENT, -customerId));
+
+        for (int customerId = 0; customerId < 10_000; customerId++)
+            assertEquals(-customerId, table.get(customerId));
+        assertEquals(10_000, table.size());
+    }
+
+    @Test
+    public void shouldBackRateLimiterLikeTheHeapTable() {
+        TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(2, 1, 1, table);
+        int aCustomerId = 100;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+    }
+}
@@ -0,0 +1,162 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PermitSchedulerTest {
+    private final AtomicInteger clock = new AtomicInteger(11);
+
+    @Test
+    public void shouldCompleteWaiterOnceTheNextTokenIsRefilled() {
+        PermitScheduler scheduler = new PermitScheduler(new TokenBucketRateLimiter(1, 1, 10), clock::get);
+
+        assertTrue(scheduler.acquireAsync(100).isDone());
+        CompletableFuture<Void> permit = scheduler.acquireAsync(100);
+        assertFalse(permit.isDone());
+
+        clock.set(20);
+        scheduler.tick();
+        assertFalse(permit.isDone());
+
+        clock.set(21);
+        scheduler.tick();
+        assertTrue(permit.isDone());
+    }
+
+    @Test
+    public void shouldAdmitWaitersInTheOrderTheyArrived() {
+        PermitScheduler scheduler = new PermitScheduler(new LeakyBucketRateLimiter(1, 1, 5), clock::get);
+        List<Integer> admitted = new ArrayList<>();
+
+        scheduler.acquireAsync(100);
+        for (int waiter = 0; waiter < 3; waiter++) {
+            int thisWaiter = waiter;
+            scheduler.acquireAsync(100).thenRun(() -> admitted.add(thisWaiter));
+        }
+
+        for (int time = 12; time <= 26; time++) {
+            clock.set(time);
+            scheduler.tick();
+        }
+
+        assertEquals(List.of(0, 1, 2), admitted);
+    }
+
+    @Test
+    public void shouldCompleteAnEarlierPermitFirstWhateverOrderTheWaitersCameIn() {
+        PermitScheduler scheduler = new PermitScheduler(new TokenBucketRateLimiter(1, 1, 10), clock::get);
+        int aCustomerId = 100;
+        int anotherCustomerId = 200;
+
+        scheduler.acquireAsync(anotherCustomerId);
+        clock.set(15);
+        scheduler.acquireAsync(aCustomerId);
+
+        clock.set(18);
+        CompletableFuture<Void> laterPermit = scheduler.acquireAsync(aCustomerId);
+        CompletableFuture<Void> earlierPermit = scheduler.acquireAsync(anotherCustomerId);
+
+        clock.set(21);
+        scheduler.tick();
+        assertTrue(earlierPermit.isDone());
+        assertFalse(laterPermit.isDone());
+
+        clock.set(25);
+        scheduler.tick();
+        assertTrue(laterPermit.isDone());
+    }
+
+    @Test
+    public void shouldBlockUntilPermitComes() throws Exception {
+        PermitScheduler scheduler = new PermitScheduler(new FixedWindowCounterRateLimiter(1, 10), clock::get);
+        scheduler.acquire(100);
+        scheduler.start(1, TimeUnit.MILLISECONDS);
+
+        try {
+            Thread waiter = new Thread(() -> {
+                try {
+                    scheduler.acquire(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            waiter.start();
+            waiter.join(50);
+            assertTrue(waiter.isAlive());
+
+            clock.set(20);
+            waiter.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(waiter.isAlive());
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void shouldHandAPermitTakenForAnInterruptedWaiterToTheNextOne() throws Exception {
+        IntStateTable customerTokenBuckets = new IntStateTable();
+        AtomicReference<Runnable> onPermitTaken = new AtomicReference<>();
+        // Runs the hook right after a permit has been taken, before the waiter's future is completed
+        CustomerStateStore hookedTokenBuckets = new CustomerStateStore() {
+            @Override
+            public long get(int customerId) {
+                return customerTokenBuckets.get(customerId);
+            }
+
+            @Override
+            public boolean compareAndSet(int customerId, long expectedState, long newState) {
+                if (!customerTokenBuckets.compareAndSet(customerId, expectedState, newState))
+                    return false;
+                Runnable hook = onPermitTaken.getAndSet(null);
+                if (hook != null)
+                    hook.run();
+                return true;
+            }
+
+            @Override
+            public long size() {
+                return customerTokenBuckets.size();
+            }
+        };
+        PermitScheduler scheduler = new PermitScheduler(new TokenBucketRateLimiter(1, 1, 10, hookedTokenBuckets), clock::get);
+        scheduler.acquireAsync(100);
+
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                scheduler.acquire(100);
+            } catch (InterruptedException e) {
+                interrupted.set(true);
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING)
+            Thread.sleep(1);
+        CompletableFuture<Void> nextPermit = scheduler.acquireAsync(100);
+
+        onPermitTaken.set(() -> {
+            waiter.interrupt();
+            try {
+                waiter.join();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        clock.set(21);
+        scheduler.tick();
+
+        assertTrue(interrupted.get());
+        assertTrue(nextPermit.isDone());
+    }
+}
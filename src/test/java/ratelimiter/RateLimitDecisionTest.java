@@ -0,0 +1,131 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimitDecisionTest {
+    @Test
+    public void shouldTellRemainingRequestsAndWhenTheNextTokenComes() {
+        RateLimiter rateLimiter = new TokenBucketRateLimiter(3, 1, 10);
+        int aCustomerId = 100;
+
+        assertDecision(true, 2, 0, rateLimiter.decideRequest(aCustomerId, 11));
+        assertDecision(true, 1, 0, rateLimiter.decideRequest(aCustomerId, 11));
+        assertDecision(true, 0, 10, rateLimiter.decideRequest(aCustomerId, 11));
+        assertDecision(false, 0, 6, rateLimiter.decideRequest(aCustomerId, 15));
+        assertDecision(true, 0, 10, rateLimiter.decideRequest(aCustomerId, 21));
+    }
+
+    @Test
+    public void shouldDecideLikeShouldAllowRequest() {
+        RateLimiter[] rateLimiters = {new GcraRateLimiter(5, 2, 3), new LeakyBucketRateLimiter(5, 2, 3),
+                new SlidingWindowCounterRateLimiter(5, 4), new FixedWindowCounterRateLimiter(4, 5), new FixedWindowTokenBucketRateLimiter(5, 4)};
+        RateLimiter[] sameRateLimiters = {new GcraRateLimiter(5, 2, 3), new LeakyBucketRateLimiter(5, 2, 3),
+                new SlidingWindowCounterRateLimiter(5, 4), new FixedWindowCounterRateLimiter(4, 5), new FixedWindowTokenBucketRateLimiter(5, 4)};
+
+        for (int i = 0; i < rateLimiters.length; i++) {
+            String name = rateLimiters[i].getClass().getSimpleName();
+            for (int timestamp = 0; timestamp < 50; timestamp++) {
+                int remaining = 0;
+                for (int request = 0; request < 7; request++) {
+                    long decision = rateLimiters[i].decideRequest(100, timestamp);
+                    boolean allowed = sameRateLimiters[i].shouldAllowRequest(100, timestamp);
+                    assertEquals(name, allowed, RateLimitDecision.isAllowed(decision));
+                    // A request is allowed whenever the one before said there were requests remaining
+                    assertTrue(name, remaining == 0 || allowed);
+
+                    remaining = RateLimitDecision.remainingOf(decision);
+                    if (remaining == 0)
+                        assertEquals(name, ((PackedStateRateLimiter) sameRateLimiters[i]).nextPermitAt(100, timestamp), timestamp + RateLimitDecision.retryAfterOf(decision));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shouldWriteTheDecisionIntoAReusedHolder() {
+        RateLimiter rateLimiter = new GcraRateLimiter(2, 1, 10);
+        RateLimitDecision decision = new RateLimitDecision();
+
+        rateLimiter.decideRequest(100, 11, decision);
+        assertTrue(decision.isAllowed());
+        assertEquals(1, decision.remaining());
+        assertEquals(0, decision.retryAfter());
+
+        rateLimiter.decideRequest(100, 11, decision);
+        rateLimiter.decideRequest(100, 11, decision);
+        assertFalse(decision.isAllowed());
+        assertEquals(0, decision.remaining());
+        assertEquals(10, decision.retryAfter());
+    }
+
+    @Test
+    public void shouldSayNoRequestWillEverBeAllowedWithoutRefill() {
+        RateLimiter rateLimiter = new TokenBucketRateLimiter(1, 0, 10);
+
+        assertDecision(true, 0, Integer.MAX_VALUE, rateLimiter.decideRequest(100, 11));
+        assertDecision(false, 0, Integer.MAX_VALUE, rateLimiter.decideRequest(100, 1000));
+    }
+
+    @Test
+    public void shouldDecideThroughShardsAndCountTheDecisions() {
+        ShardedRateLimiter rateLimiter = new ShardedRateLimiter(4, () -> new TokenBucketRateLimiter(2, 1, 10));
+
+        assertDecision(true, 1, 0, rateLimiter.decideRequest(100, 11));
+        assertEquals(1, rateLimiter.metrics().allowedRequests());
+    }
+
+    @Test
+    public void shouldSayTheQuotaIsUnknownWhenOnlyTheDecisionIsKnown() {
+        RateLimiter rateLimiter = new SlidingWindowLogRateLimiter(1, 10);
+        RateLimitDecision decision = new RateLimitDecision();
+
+        assertDecision(true, RateLimitDecision.UNKNOWN, RateLimitDecision.UNKNOWN, rateLimiter.decideRequest(100, 11));
+        rateLimiter.decideRequest(100, 11, decision);
+        assertFalse(decision.isAllowed());
+        assertEquals(RateLimitDecision.UNKNOWN, decision.remaining());
+        assertEquals(RateLimitDecision.UNKNOWN, decision.retryAfter());
+    }
+
+    @Test
+    public void shouldPassOnTheQuotaOfTheStrictestLevel() {
+        RateLimiter rateLimiter = new HierarchicalRateLimiter(new TokenBucketRateLimiter(3, 1, 10), new TokenBucketRateLimiter(2, 1, 10),
+                new TokenBucketRateLimiter(100, 1, 10), customerId -> 1);
+
+        assertDecision(true, 1, 0, rateLimiter.decideRequest(100, 11));
+        assertDecision(true, 0, 10, rateLimiter.decideRequest(100, 11));
+        assertDecision(false, 0, 10, rateLimiter.decideRequest(100, 11));
+        assertDecision(false, 0, 6, rateLimiter.decideRequest(200, 15));
+    }
+
+    @Test
+    public void shouldPassOnTheQuotaOfTheStateLeasesAreTakenFrom() {
+        RateLimiter rateLimiter = new HotKeyLeasingRateLimiter(new TokenBucketRateLimiter(3, 1, 10), 16);
+
+        assertDecision(true, 2, 0, rateLimiter.decideRequest(100, 11));
+        assertDecision(true, 1, 0, rateLimiter.decideRequest(100, 11));
+        assertDecision(true, 0, 10, rateLimiter.decideRequest(100, 11));
+        assertDecision(false, 0, 6, rateLimiter.decideRequest(100, 15));
+    }
+
+    @Test
+    public void shouldCountTheLeaseAsRemainingAndLeaveTheRestToTheCoordinator() {
+        RateLimiter rateLimiter = new DistributedRateLimiter(new InProcessQuotaLeaseTransport(new TokenBucketRateLimiter(5, 0, 1)), 4, 10);
+
+        assertDecision(true, 3, 0, rateLimiter.decideRequest(100, 11));
+        assertDecision(true, 2, 0, rateLimiter.decideRequest(100, 11));
+        assertDecision(true, 1, 0, rateLimiter.decideRequest(100, 11));
+        assertDecision(true, RateLimitDecision.UNKNOWN, RateLimitDecision.UNKNOWN, rateLimiter.decideRequest(100, 11));
+        assertDecision(true, RateLimitDecision.UNKNOWN, RateLimitDecision.UNKNOWN, rateLimiter.decideRequest(100, 11));
+        assertDecision(false, RateLimitDecision.UNKNOWN, RateLimitDecision.UNKNOWN, rateLimiter.decideRequest(100, 11));
+    }
+
+    private static void assertDecision(boolean allowed, int remaining, int retryAfter, long decision) {
+        assertEquals(allowed, RateLimitDecision.isAllowed(decision));
+        assertEquals(remaining, RateLimitDecision.remainingOf(decision));
+        assertEquals(retryAfter, RateLimitDecision.retryAfterOf(decision));
+    }
+}
@@ -0,0 +1,67 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterMetricsTest {
+    @Test
+    public void shouldCountAllowedAndDeniedRequests() {
+        RateLimiter rateLimiter = new TokenBucketRateLimiter(2, 1, 10);
+
+        rateLimiter.shouldAllowRequest(100, 11);
+        rateLimiter.shouldAllowRequest(100, 11);
+        rateLimiter.shouldAllowRequest(100, 11);
+        rateLimiter.shouldAllowRequests(new int[]{200, 200, 200}, new int[]{11, 11, 11}, new boolean[3]);
+
+        assertEquals(4, rateLimiter.metrics().allowedRequests());
+        assertEquals(2, rateLimiter.metrics().deniedRequests());
+        assertEquals(2, rateLimiter.metrics().trackedCustomers());
+    }
+
+    @Test
+    public void shouldCountExpiredCustomers() {
+        RateLimiter rateLimiter = new SlidingWindowLogRateLimiter(2, 10, new IntStateTable(), new TimingWheelExpiry(1));
+
+        rateLimiter.shouldAllowRequest(100, 11);
+        rateLimiter.shouldAllowRequest(200, 11);
+        rateLimiter.shouldAllowRequest(300, 30);
+
+        assertEquals(2, rateLimiter.metrics().expiredCustomers());
+        assertEquals(1, rateLimiter.metrics().trackedCustomers());
+    }
+
+    @Test
+    public void shouldSampleDecisionLatency() {
+        RateLimiter rateLimiter = new FixedWindowCounterRateLimiter(10, 10);
+
+        for (int request = 0; request < 100 * RateLimiterMetrics.LATENCY_SAMPLING; request++)
+            rateLimiter.shouldAllowRequest(request, 11);
+
+        long sampled = rateLimiter.metrics().decisionLatency().count();
+        assertTrue("Sampled " + sampled, sampled > 0 && sampled < 100 * RateLimiterMetrics.LATENCY_SAMPLING);
+        assertTrue(rateLimiter.metrics().decisionLatency().valueAtPercentile(99) > 0);
+    }
+
+    @Test
+    public void shouldSumTrackedCustomersOfAllShards() {
+        RateLimiter rateLimiter = new ShardedRateLimiter(4, () -> new LeakyBucketRateLimiter(1, 1, 10));
+
+        for (int customerId = 0; customerId < 50; customerId++)
+            rateLimiter.shouldAllowRequest(customerId, 11);
+
+        assertEquals(50, rateLimiter.metrics().trackedCustomers());
+        assertEquals(50, rateLimiter.metrics().allowedRequests());
+    }
+
+    @Test
+    public void shouldReadZeroForRateLimiterThatKeepsNoMetrics() {
+        RateLimiter rateLimiter = (customerId, timestamp) -> true;
+
+        rateLimiter.shouldAllowRequest(100, 11);
+
+        assertEquals(0, rateLimiter.metrics().allowedRequests());
+        assertEquals(0, rateLimiter.metrics().trackedCustomers());
+    }
+}
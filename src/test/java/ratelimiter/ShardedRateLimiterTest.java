@@ -0,0 +1,55 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedRateLimiterTest {
+    private final ShardedRateLimiter rateLimiter = new ShardedRateLimiter(4, () -> new FixedWindowCounterRateLimiter(2, 10));
+
+    @Test
+    public void shouldLimitEachCustomerLikeTheShardedRateLimiter() {
+        int aCustomerId = 100;
+        int anotherCustomerId = 200;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+        assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 13));
+        assertFalse(rateLimiter.shouldAllowRequest(anotherCustomerId, 13));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 20));
+    }
+
+    @Test
+    public void shouldCountRequestsOfEachShard() {
+        int aCustomerId = 100;
+        int shard = rateLimiter.shardOf(aCustomerId);
+
+        rateLimiter.shouldAllowRequest(aCustomerId, 11);
+        rateLimiter.shouldAllowRequest(aCustomerId, 11);
+        rateLimiter.shouldAllowRequest(aCustomerId, 11);
+
+        assertEquals(2, rateLimiter.allowedRequests(shard));
+        assertEquals(1, rateLimiter.deniedRequests(shard));
+        assertEquals(0, rateLimiter.allowedRequests((shard + 1) % rateLimiter.shardCount()));
+    }
+
+    @Test
+    public void shouldDecideBatchOfRequestsAcrossShards() {
+        int[] customerIds = {100, 200, 300, 100, 200, 300, 100, 200, 300};
+        int[] timestamps = {11, 11, 11, 12, 12, 12, 13, 13, 13};
+        boolean[] results = new boolean[customerIds.length];
+
+        rateLimiter.shouldAllowRequests(customerIds, timestamps, results);
+
+        assertArrayEquals(new boolean[]{true, true, true, true, true, true, false, false, false}, results);
+        long allowedRequests = 0;
+        for (int shard = 0; shard < rateLimiter.shardCount(); shard++)
+            allowedRequests += rateLimiter.allowedRequests(shard);
+        assertEquals(6, allowedRequests);
+    }
+}
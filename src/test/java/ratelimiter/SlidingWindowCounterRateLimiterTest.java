@@ -2,6 +2,7 @@ package ratelimiter;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -49,4 +50,15 @@ public class SlidingWindowCounterRateLimiterTest {
         assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
         assertFalse(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void shouldDecideBatchOfRequestsLikeTheSameRequestsOneByOne() {
+        int[] customerIds = {100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200};
+        int[] timestamps = {11, 11, 12, 12, 13, 13, 14, 14, 18, 18, 19, 19, 20, 20};
+        boolean[] results = new boolean[customerIds.length];
+
+        rateLimiter.shouldAllowRequests(customerIds, timestamps, results);
+
+        assertArrayEquals(new boolean[]{true, true, true, true, true, true, true, true, true, true, false, false, true, true}, results);
+    }
+}
@@ -2,6 +2,8 @@ package ratelimiter;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -50,4 +52,45 @@ public class SlidingWindowLogRateLimiterTest {
         assertFalse(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void shouldOnlyAllowRequestOnceOldestRequestLeavesTheWindowWhenLogIsLarge() {
+        SlidingWindowLogRateLimiter rateLimiter = new SlidingWindowLogRateLimiter(100_000, 10);
+        int aCustomerId = 100;
+
+        for (int request = 0; request < 100_000; request++)
+            assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 1));
+
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 12));
+    }
+
+    @Test
+    public void shouldDecideBatchOfRequestsLikeTheSameRequestsOneByOne() {
+        int[] customerIds = {100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200};
+        int[] timestamps = {9, 9, 12, 12, 13, 13, 14, 14, 18, 18, 19, 19, 20, 20};
+        boolean[] results = new boolean[customerIds.length];
+
+        rateLimiter.shouldAllowRequests(customerIds, timestamps, results);
+
+        assertArrayEquals(new boolean[]{true, true, true, true, true, true, true, true, true, true, false, false, true, true}, results);
+    }
+
+    @Test
+    public void shouldStartExpiredCustomerWithAnEmptyLog() {
+        IntStateTable customerRequestTimestamps = new IntStateTable();
+        SlidingWindowLogRateLimiter rateLimiter = new SlidingWindowLogRateLimiter(2, 10, customerRequestTimestamps, new TimingWheelExpiry());
+        int aCustomerId = 100;
+        int anotherCustomerId = 200;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 1));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 2));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 3));
+
+        // Expires the first customer, whose ring is then reused by the next new customer
+        assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 13));
+        assertEquals(CustomerStateStore.ABSENT, customerRequestTimestamps.get(aCustomerId));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 13));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 13));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 13));
+    }
+}
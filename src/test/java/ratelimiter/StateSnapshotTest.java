@@ -0,0 +1,184 @@
+package ratelimiter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StateSnapshotTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldRestoreLatestStateOfEveryCustomer() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("states");
+        IntStateTable table = new IntStateTable(16, 4);
+        for (int customerId = 0; customerId < 1_000; customerId++)
+            table.compareAndSet(customerId, CustomerStateStore.ABSENT, customerId);
+
+        try (StateSnapshot snapshot = new StateSnapshot(table, file)) {
+            snapshot.writeFull();
+            table.compareAndSet(7, 7, 70);
+            table.compareAndSet(8, 8, CustomerStateStore.ABSENT);
+            snapshot.writeChanges();
+        }
+
+        IntStateTable restored = new IntStateTable();
+        StateSnapshot.restore(file, restored);
+
+        assertEquals(999, restored.size());
+        assertEquals(70, restored.get(7));
+        assertEquals(CustomerStateStore.ABSENT, restored.get(8));
+        assertEquals(999, restored.get(999));
+    }
+
+    @Test
+    public void shouldIgnoreRecordCutShortByACrash() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("states");
+        IntStateTable table = new IntStateTable(16, 1);
+        table.compareAndSet(100, CustomerStateStore.ABSENT, 1);
+
+        try (StateSnapshot snapshot = new StateSnapshot(table, file)) {
+            snapshot.writeFull();
+            table.compareAndSet(100, 1, 2);
+            snapshot.writeChanges();
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        IntStateTable restored = new IntStateTable();
+        StateSnapshot.restore(file, restored);
+
+        assertEquals(1, restored.get(100));
+    }
+
+    @Test
+    public void shouldKeepLimitsOfRateLimiterAcrossRestart() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("states");
+        OffHeapStateTable table = new OffHeapStateTable();
+        TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(2, 1, 10, table);
+        int aCustomerId = 100;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        try (StateSnapshot snapshot = new StateSnapshot(table, file)) {
+            snapshot.writeFull();
+        }
+
+        IntStateTable restored = new IntStateTable();
+        StateSnapshot.restore(file, restored);
+        TokenBucketRateLimiter restartedRateLimiter = new TokenBucketRateLimiter(2, 1, 10, restored);
+
+        assertFalse(restartedRateLimiter.shouldAllowRequest(aCustomerId, 12));
+        assertTrue(restartedRateLimiter.shouldAllowRequest(aCustomerId, 21));
+    }
+
+    @Test
+    public void shouldRestoreLastWrittenStateOfACustomer() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("states");
+        IntStateTable table = new IntStateTable(16, 1);
+        table.compareAndSet(5, CustomerStateStore.ABSENT, 1);
+
+        try (StateSnapshot snapshot = new StateSnapshot(table, file)) {
+            snapshot.writeFull();
+            table.compareAndSet(5, 1, 2);
+            snapshot.writeChanges();
+            table.compareAndSet(5, 2, CustomerStateStore.ABSENT);
+            snapshot.writeChanges();
+            table.compareAndSet(5, CustomerStateStore.ABSENT, 3);
+            snapshot.writeChanges();
+        }
+
+        IntStateTable restored = new IntStateTable();
+
+        assertEquals(1, StateSnapshot.restore(file, restored));
+        assertEquals(3, restored.get(5));
+        assertEquals(1, restored.size());
+    }
+
+    @Test
+    public void shouldAppendOnlyTheCustomersThatChanged() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("states");
+        IntStateTable table = new IntStateTable(16, 1);
+        for (int customerId = 0; customerId < 1_000; customerId++)
+            table.compareAndSet(customerId, CustomerStateStore.ABSENT, customerId);
+
+        try (StateSnapshot snapshot = new StateSnapshot(table, file)) {
+            snapshot.writeFull();
+            long fullWriteBytes = Files.size(file);
+            table.compareAndSet(7, 7, 70);
+            snapshot.writeChanges();
+
+            // A record header and one customer
+            assertEquals(fullWriteBytes + 2 * Integer.BYTES + Integer.BYTES + Long.BYTES, Files.size(file));
+        }
+    }
+
+    @Test
+    public void shouldKeepRemovalOfACustomerAcrossAResize() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("states");
+        IntStateTable table = new IntStateTable(16, 1);
+        table.compareAndSet(1, CustomerStateStore.ABSENT, 1);
+
+        try (StateSnapshot snapshot = new StateSnapshot(table, file)) {
+            snapshot.writeFull();
+            table.compareAndSet(1, 1, CustomerStateStore.ABSENT);
+            for (int customerId = 2; customerId < 100; customerId++)
+                table.compareAndSet(customerId, CustomerStateStore.ABSENT, customerId);
+            snapshot.writeChanges();
+        }
+
+        IntStateTable restored = new IntStateTable();
+        StateSnapshot.restore(file, restored);
+
+        assertEquals(CustomerStateStore.ABSENT, restored.get(1));
+        assertEquals(98, restored.size());
+    }
+
+    @Test
+    public void shouldExpireRestoredCustomersOnceIdle() throws IOException {
+        Path file = temporaryFolder.getRoot().toPath().resolve("states");
+        IntStateTable table = new IntStateTable();
+        TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(2, 1, 10, table);
+        assertTrue(rateLimiter.shouldAllowRequest(100, 11));
+        try (StateSnapshot snapshot = new StateSnapshot(table, file)) {
+            snapshot.writeFull();
+        }
+
+        IntStateTable restored = new IntStateTable();
+        TokenBucketRateLimiter restartedRateLimiter = new TokenBucketRateLimiter(2, 1, 10, restored, new TimingWheelExpiry());
+
+        assertEquals(1, StateSnapshot.restore(file, restartedRateLimiter));
+        assertTrue(restartedRateLimiter.shouldAllowRequest(200, 12));
+        assertEquals(2, restored.size());
+        restartedRateLimiter.shouldAllowRequest(200, 100);
+        assertEquals(CustomerStateStore.ABSENT, restored.get(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRefuseTableThatOnlyMapsCustomersToRings() {
+        IntStateTable table = new IntStateTable();
+        new MultiSlotSlidingWindowRateLimiter(10, 5, 5, table);
+
+        new StateSnapshot(table, temporaryFolder.getRoot().toPath().resolve("states"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRefuseToWriteTableGivenToSlidingWindowLogAfterTheSnapshot() throws IOException {
+        IntStateTable table = new IntStateTable();
+        try (StateSnapshot snapshot = new StateSnapshot(table, temporaryFolder.getRoot().toPath().resolve("states"))) {
+            new SlidingWindowLogRateLimiter(5, 10, table);
+            snapshot.writeFull();
+        }
+    }
+}
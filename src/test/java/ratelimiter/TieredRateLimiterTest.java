@@ -0,0 +1,115 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TieredRateLimiterTest {
+    private static final int PRO = 1;
+    private static final int ENTERPRISE = 2;
+
+    private final TieredRateLimiter rateLimiter = new TieredRateLimiter(new RatePolicies(2, 1, 10)
+            .with(PRO, 5, 1, 10)
+            .with(ENTERPRISE, 10, 1, 1));
+
+    @Test
+    public void shouldApplyTheLimitsOfEachCustomersTier() {
+        int freeCustomerId = 100;
+        int proCustomerId = 200;
+        int enterpriseCustomerId = 300;
+        rateLimiter.assignPolicy(proCustomerId, PRO);
+        rateLimiter.assignPolicy(enterpriseCustomerId, ENTERPRISE);
+
+        assertEquals(2, allowedRequests(freeCustomerId, 11));
+        assertEquals(5, allowedRequests(proCustomerId, 11));
+        assertEquals(10, allowedRequests(enterpriseCustomerId, 11));
+
+        assertEquals(1, allowedRequests(freeCustomerId, 21));
+        assertEquals(1, allowedRequests(proCustomerId, 21));
+        assertEquals(10, allowedRequests(enterpriseCustomerId, 21));
+    }
+
+    @Test
+    public void shouldKeepWhatCustomersUsedWhenPoliciesAreSwapped() {
+        int aCustomerId = 100;
+        int anotherCustomerId = 200;
+        assertEquals(2, allowedRequests(aCustomerId, 11));
+
+        rateLimiter.updatePolicies(rateLimiter.policies().with(0, 4, 1, 10));
+
+        assertEquals(2, allowedRequests(aCustomerId, 11));
+        assertEquals(4, allowedRequests(anotherCustomerId, 11));
+    }
+
+    @Test
+    public void shouldKeepTrackingCustomersOutsideTheDefaultTier() {
+        IntStateTable customerArrivalTimes = new IntStateTable();
+        TieredRateLimiter rateLimiter = new TieredRateLimiter(new RatePolicies(2, 1, 10).with(PRO, 5, 1, 10), customerArrivalTimes, new TimingWheelExpiry());
+        int freeCustomerId = 100;
+        int proCustomerId = 200;
+
+        assertTrue(rateLimiter.shouldAllowRequest(freeCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(proCustomerId, 11));
+        rateLimiter.assignPolicy(proCustomerId, PRO);
+
+        assertTrue(rateLimiter.shouldAllowRequest(300, 1000));
+        assertEquals(CustomerStateStore.ABSENT, customerArrivalTimes.get(freeCustomerId));
+        assertNotEquals(CustomerStateStore.ABSENT, customerArrivalTimes.get(proCustomerId));
+        for (int request = 0; request < 5; request++)
+            assertTrue(rateLimiter.shouldAllowRequest(proCustomerId, 1000));
+        assertFalse(rateLimiter.shouldAllowRequest(proCustomerId, 1000));
+    }
+
+    @Test
+    public void shouldTrackCustomersThatGotAPolicyBeforeTheirFirstRequest() {
+        IntStateTable customerArrivalTimes = new IntStateTable();
+        TieredRateLimiter rateLimiter = new TieredRateLimiter(new RatePolicies(2, 1, 10).with(PRO, 5, 1, 10), customerArrivalTimes, new TimingWheelExpiry());
+        int aCustomerId = 100;
+
+        assertTrue(rateLimiter.shouldAllowRequest(300, 11));
+        rateLimiter.assignPolicy(aCustomerId, PRO);
+        rateLimiter.assignPolicy(aCustomerId, 0);
+        assertEquals(2, customerArrivalTimes.size());
+
+        // Back in the default tier with a full bucket, so nothing tells it apart from a new customer any more
+        assertTrue(rateLimiter.shouldAllowRequest(300, 1000));
+        assertEquals(CustomerStateStore.ABSENT, customerArrivalTimes.get(aCustomerId));
+    }
+
+    @Test
+    public void shouldDecideLikeGcraWithinATier() {
+        Random random = new Random(42);
+        int[][] limits = {{5, 2, 1}, {1, 2, 10}, {10, 3, 7}, {3, 0, 1}};
+
+        for (int[] limit : limits) {
+            RateLimiter gcra = new GcraRateLimiter(limit[0], limit[1], limit[2]);
+            TieredRateLimiter tiered = new TieredRateLimiter(new RatePolicies(1, 1, 1).with(PRO, limit[0], limit[1], limit[2]));
+            for (int customerId = 0; customerId < 5; customerId++)
+                tiered.assignPolicy(customerId, PRO);
+            int timestamp = -1000;
+
+            for (int request = 0; request < 10_000; request++) {
+                timestamp += random.nextInt(3);
+                int customerId = random.nextInt(5);
+                assertEquals("Request " + request + " at " + timestamp, gcra.shouldAllowRequest(customerId, timestamp), tiered.shouldAllowRequest(customerId, timestamp));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectPolicyIdsThatDoNotFitInTheState() {
+        new RatePolicies(2, 1, 10).with(RatePolicies.MAX_POLICIES, 5, 1, 10);
+    }
+
+    private int allowedRequests(int customerId, int timestamp) {
+        int allowed = 0;
+        while (allowed < 100 && rateLimiter.shouldAllowRequest(customerId, timestamp))
+            allowed++;
+        return allowed;
+    }
+}
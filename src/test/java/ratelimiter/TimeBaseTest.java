@@ -0,0 +1,81 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeBaseTest {
+    private final AtomicLong nanoTime = new AtomicLong(5_000_000_000L);
+
+    @Test
+    public void shouldCountWholeTicksSinceItWasCreated() {
+        TimeBase timeBase = new TimeBase(nanoTime::get, 10, TimeUnit.MILLISECONDS);
+
+        assertEquals(0, timeBase.now());
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(25));
+        assertEquals(2, timeBase.now());
+        assertEquals(100, timeBase.ticks(1, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldFailOnceTimestampsRunOutInsteadOfGivingAWrongOne() {
+        TimeBase timeBase = new TimeBase(nanoTime::get, 1, TimeUnit.NANOSECONDS);
+
+        nanoTime.addAndGet(Integer.MAX_VALUE + 10L);
+        timeBase.now();
+    }
+
+    @Test
+    public void shouldCountFromTheEpochWhateverTheProcess() {
+        Instant epoch = Instant.parse("2026-01-01T00:00:00Z");
+        Clock wallClock = Clock.fixed(epoch.plusSeconds(90), ZoneOffset.UTC);
+        TimeBase timeBase = new TimeBase(nanoTime::get, wallClock, 1, TimeUnit.SECONDS, epoch);
+        // Another process, whose nanosecond clock counts from elsewhere, started a minute later
+        AtomicLong restartedNanoTime = new AtomicLong(-7_000_000_000L);
+        TimeBase restartedTimeBase = new TimeBase(restartedNanoTime::get, Clock.offset(wallClock, Duration.ofMinutes(1)), 1, TimeUnit.SECONDS, epoch);
+
+        assertEquals(90, timeBase.now());
+        assertEquals(150, restartedTimeBase.now());
+        restartedNanoTime.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        assertEquals(155, restartedTimeBase.now());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectEpochInTheFuture() {
+        Instant now = Instant.parse("2026-01-01T00:00:00Z");
+        new TimeBase(nanoTime::get, Clock.fixed(now, ZoneOffset.UTC), 1, TimeUnit.SECONDS, now.plusSeconds(1));
+    }
+
+    @Test
+    public void shouldLimitWithTimestampsOfTheTimeBase() {
+        TimeBase timeBase = new TimeBase(nanoTime::get, 1, TimeUnit.MILLISECONDS);
+        RateLimiter rateLimiter = new TokenBucketRateLimiter(1, 10, timeBase.ticks(1, TimeUnit.SECONDS));
+
+        assertTrue(rateLimiter.shouldAllowRequest(100, timeBase.now()));
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(99));
+        assertFalse(rateLimiter.shouldAllowRequest(100, timeBase.now()));
+        nanoTime.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(rateLimiter.shouldAllowRequest(100, timeBase.now()));
+    }
+
+    @Test
+    public void shouldGiveTheCachedTimeUntilUpdated() {
+        try (CachedClock clock = new CachedClock(nanoTime::get, 1, TimeUnit.HOURS)) {
+            long cached = clock.nanoTime();
+            nanoTime.addAndGet(1_000);
+            assertEquals(cached, clock.nanoTime());
+
+            clock.update();
+            assertEquals(cached + 1_000, clock.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ratelimiter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelExpiryTest {
+    // A single wheel, so customers due at different times are checked in time order
+    private final TimingWheelExpiry expiry = new TimingWheelExpiry(1);
+    private final List<String> checks = new ArrayList<>();
+
+    // Expires every customer the first time it is checked and records when that was
+    private final CustomerExpiry.IdleCheck expireOnFirstCheck = (customerId, timestamp) -> {
+        checks.add(customerId + "@" + timestamp);
+        return CustomerExpiry.IdleCheck.NOT_TRACKED;
+    };
+
+    @Test
+    public void shouldCheckCustomerOnlyOnceItsIdleTimeIsReached() {
+        expiry.advance(10, expireOnFirstCheck);
+        expiry.track(100, 15);
+        expiry.track(200, 80);
+
+        expiry.advance(14, expireOnFirstCheck);
+        assertTrue(checks.isEmpty());
+
+        expiry.advance(15, expireOnFirstCheck);
+        assertEquals(List.of("100@15"), checks);
+
+        expiry.advance(100, expireOnFirstCheck);
+        assertEquals(List.of("100@15", "200@80"), checks);
+        assertEquals(0, expiry.size());
+    }
+
+    @Test
+    public void shouldCheckCustomerAgainWhenItIsNotIdleYet() {
+        expiry.advance(10, expireOnFirstCheck);
+        expiry.track(100, 12);
+
+        expiry.advance(20, (customerId, timestamp) -> {
+            checks.add(customerId + "@" + timestamp);
+            return timestamp < 15 ? 15 : CustomerExpiry.IdleCheck.NOT_TRACKED;
+        });
+
+        assertEquals(List.of("100@12", "100@15"), checks);
+        assertEquals(0, expiry.size());
+    }
+
+    @Test
+    public void shouldCheckCustomersFarAheadInTimeWhenTimeJumps() {
+        expiry.advance(10, expireOnFirstCheck);
+        expiry.track(100, 5_000);
+        expiry.track(200, 1_000_000);
+        expiry.track(300, 2_000_000_000);
+
+        expiry.advance(999_999, expireOnFirstCheck);
+        assertEquals(List.of("100@5000"), checks);
+
+        expiry.advance(Integer.MAX_VALUE, expireOnFirstCheck);
+        assertEquals(List.of("100@5000", "200@1000000", "300@2000000000"), checks);
+    }
+
+    @Test
+    public void shouldCheckCustomerThatIsAlreadyIdleInTheNextTimeUnit() {
+        expiry.advance(10, expireOnFirstCheck);
+        expiry.track(100, 3);
+
+        expiry.advance(11, expireOnFirstCheck);
+
+        assertEquals(List.of("100@11"), checks);
+    }
+}
@@ -2,6 +2,14 @@ package ratelimiter;
 
 import org.junit.Test;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -52,4 +60,79 @@ public class TokenBucketRateLimiterTest {
         assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
         assertFalse(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
     }
+
+    @Test
+    public void shouldNotAllowMoreRequestsThanTokensWhenRequestsAreConcurrent() throws InterruptedException {
+        TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(1_000, 1, 1);
+        int aCustomerId = 100_000;
+        int threads = 8;
+        AtomicInteger allowedRequests = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        for (int thread = 0; thread < threads; thread++) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int request = 0; request < 1_000; request++) {
+                    if (rateLimiter.shouldAllowRequest(aCustomerId, 11))
+                        allowedRequests.incrementAndGet();
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertEquals(1_000, allowedRequests.get());
+    }
+
+    @Test
+    public void shouldDecideBatchOfRequestsLikeTheSameRequestsOneByOne() {
+        int[] customerIds = {100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200, 100, 200};
+        int[] timestamps = {11, 11, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 12, 13, 13};
+        boolean[] results = new boolean[customerIds.length];
+
+        rateLimiter.shouldAllowRequests(customerIds, timestamps, results);
+
+        assertArrayEquals(new boolean[]{true, true, true, true, true, true, true, true, true, true, true, true, false, false, true, true}, results);
+    }
+
+    @Test
+    public void shouldStopTrackingCustomerOnceItsBucketIsFullAgain() {
+        IntStateTable customerTokenBuckets = new IntStateTable();
+        TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(5, 2, 1, customerTokenBuckets, new TimingWheelExpiry());
+        int aCustomerId = 100;
+        int anotherCustomerId = 200;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertEquals(2 * TokenBucket.ONE_TOKEN, TokenBucket.remainingTokens(customerTokenBuckets.get(aCustomerId)));
+
+        // 3 missing tokens at 2 tokens per refill window take 1.5 windows to refill, so the bucket is full at 13
+        assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 12));
+        assertEquals(2, customerTokenBuckets.size());
+        assertTrue(rateLimiter.shouldAllowRequest(anotherCustomerId, 13));
+        assertEquals(1, customerTokenBuckets.size());
+        assertEquals(CustomerStateStore.ABSENT, customerTokenBuckets.get(aCustomerId));
+    }
+
+    @Test
+    public void shouldRefillTokensForPartOfARefillWindow() {
+        TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(1, 2, 10);
+        int aCustomerId = 100;
+
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 11));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 15));
+        // Half a refill window brings back one of the 2 tokens of the window
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 16));
+        assertFalse(rateLimiter.shouldAllowRequest(aCustomerId, 18));
+        // Partial refills add up instead of each one being thrown away
+        assertTrue(rateLimiter.shouldAllowRequest(aCustomerId, 21));
+    }
 }